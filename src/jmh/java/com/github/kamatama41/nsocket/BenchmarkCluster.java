@@ -0,0 +1,166 @@
+package com.github.kamatama41.nsocket;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// A server and clients with one connection each on localhost, for end-to-end benchmarks.
+// The server runs with the given numbers of workers and processors, which are what benchmarks compare.
+class BenchmarkCluster implements AutoCloseable {
+    private final SocketServer server;
+    private final List<SocketClient> clients;
+    private final List<Connection> connections;
+    private final AtomicLong numOfReceived;
+    private final AtomicInteger connectionCounter;
+
+    private BenchmarkCluster() throws IOException {
+        this.server = new SocketServer();
+        this.clients = new ArrayList<>();
+        this.connections = new ArrayList<>();
+        this.numOfReceived = new AtomicLong(0L);
+        this.connectionCounter = new AtomicInteger(0);
+    }
+
+    static BenchmarkCluster start(boolean isTls, int numOfWorkers, int numOfProcessors, int numOfConnections)
+            throws IOException {
+        return start(isTls, numOfWorkers, numOfProcessors, numOfConnections, server -> {}, client -> {});
+    }
+
+    // The configurers are called before the server starts and each client opens, e.g. to register more commands.
+    static BenchmarkCluster start(boolean isTls, int numOfWorkers, int numOfProcessors, int numOfConnections,
+                                  Consumer<SocketServer> serverConfigurer, Consumer<SocketClient> clientConfigurer)
+            throws IOException {
+        BenchmarkCluster cluster = new BenchmarkCluster();
+        try {
+            cluster.open(isTls ? BenchmarkSsl.createSSLContext() : null, numOfWorkers, numOfProcessors, numOfConnections,
+                    serverConfigurer, clientConfigurer);
+        } catch (IOException | RuntimeException e) {
+            cluster.close();
+            throw e;
+        }
+        return cluster;
+    }
+
+    private void open(SSLContext sslContext, int numOfWorkers, int numOfProcessors, int numOfConnections,
+                      Consumer<SocketServer> serverConfigurer, Consumer<SocketClient> clientConfigurer)
+            throws IOException {
+        int port = findFreePort();
+        server.setName("benchmark-server");
+        server.setPort(port);
+        server.setNumOfWorkers(numOfWorkers);
+        server.setNumOfProcessors(numOfProcessors);
+        server.setJmxEnabled(false);
+        server.registerCommand(new CountCommand(numOfReceived));
+        server.registerSyncCommand(new EchoCommand());
+        if (sslContext != null) {
+            server.setSslContext(sslContext);
+        }
+        serverConfigurer.accept(server);
+        server.start();
+
+        for (int i = 0; i < numOfConnections; i++) {
+            SocketClient client = new SocketClient();
+            clients.add(client);
+            client.setName("benchmark-client-" + i);
+            client.setJmxEnabled(false);
+            client.setNumOfWorkers(1);
+            client.setNumOfProcessors(1);
+            client.setNumOfConnectionsPerNode(1);
+            client.registerSyncCommand(new EchoCommand());
+            if (sslContext != null) {
+                client.setSslContext(sslContext);
+            }
+            clientConfigurer.accept(client);
+            client.open();
+            connections.add(client.addNode(new InetSocketAddress("127.0.0.1", port)));
+        }
+    }
+
+    SocketServer getServer() {
+        return server;
+    }
+
+    // Connections are handed out in round robin, e.g. to benchmark threads
+    Connection nextConnection() {
+        return connections.get(Math.abs(connectionCounter.getAndIncrement() % connections.size()));
+    }
+
+    List<Connection> getConnections() {
+        return connections;
+    }
+
+    // Commands of CountCommand.ID which the server has handled
+    long getNumOfReceived() {
+        return numOfReceived.get();
+    }
+
+    // Waits until the server has handled the number of commands, or throws if it takes too long.
+    void awaitReceived(long expected, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (numOfReceived.get() < expected) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException(String.format(
+                        "Server handled %d of %d commands in %d ms.", numOfReceived.get(), expected, timeoutMillis));
+            }
+            Thread.sleep(1L);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SocketClient client : clients) {
+            client.close();
+        }
+        server.stop();
+    }
+
+    static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static class CountCommand implements Command<Payload> {
+        static final String ID = "benchmark_count";
+        private final AtomicLong counter;
+
+        CountCommand(AtomicLong counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public void execute(Payload data, Connection connection) {
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+
+    static class EchoCommand implements SyncCommand<Payload, Payload> {
+        static final String ID = "benchmark_echo";
+
+        @Override
+        public Payload apply(Payload data, Connection connection) {
+            return data;
+        }
+
+        @Override
+        public long getTimeoutMillis() {
+            return 10 * 1000L;
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.kamatama41.nsocket;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+// A self-signed certificate generated by keytool for each run, so that benchmarks never depend on certificates
+// which might have expired. Servers and clients share it as both the key and the trust store.
+class BenchmarkSsl {
+    private static final String PASSWORD = "nsocket-benchmark";
+
+    private BenchmarkSsl() {
+    }
+
+    static SSLContext createSSLContext() throws IOException {
+        Path dir = Files.createTempDirectory("nsocket-benchmark");
+        Path keyStorePath = dir.resolve("benchmark.p12");
+        try {
+            generateKeyStore(keyStorePath);
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(keyStorePath)) {
+                keyStore.load(in, PASSWORD.toCharArray());
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, PASSWORD.toCharArray());
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(keyStore);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to create an SSLContext.", e);
+        } finally {
+            Files.deleteIfExists(keyStorePath);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static void generateKeyStore(Path path) throws IOException {
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair",
+                "-alias", "nsocket-benchmark", "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+                "-dname", "CN=localhost", "-storetype", "PKCS12", "-keystore", path.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool exited with " + process.exitValue());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating a key store.", e);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.kamatama41.nsocket;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// A soak test which opens many idle connections on localhost and holds them with heartbeats only,
+// then reports the memory per connection and the CPU time which heartbeats cost.
+// Client and server run in this process, so the memory of a connection includes both ends of it.
+// The process should have a file descriptor limit of more than twice the connections.
+//
+// Run with "./gradlew connectionSoak -PsoakArgs='--numOfConnections=20000 --transport=tls'", options are:
+//   --transport=plaintext|tls, --numOfConnections, --numOfProcessors (of each side), --heartbeatIntervalSeconds,
+//   --holdSeconds, --maxHeapBytesPerConnection (fails the run if exceeded, 0 disables it)
+public class ConnectionSoak {
+    private static final Map<String, String> DEFAULT_OPTIONS = new HashMap<>();
+    static {
+        DEFAULT_OPTIONS.put("transport", "plaintext");
+        DEFAULT_OPTIONS.put("numOfConnections", "10000");
+        DEFAULT_OPTIONS.put("numOfProcessors", "2");
+        DEFAULT_OPTIONS.put("heartbeatIntervalSeconds", "1");
+        DEFAULT_OPTIONS.put("holdSeconds", "60");
+        DEFAULT_OPTIONS.put("maxHeapBytesPerConnection", "0");
+    }
+    private final ToolOptions options;
+
+    ConnectionSoak(ToolOptions options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!new ConnectionSoak(ToolOptions.parse(DEFAULT_OPTIONS, args)).run()) {
+            System.exit(1);
+        }
+    }
+
+    // Returns false if the footprint exceeds the limit or connections are lost while holding them.
+    boolean run() throws IOException, InterruptedException {
+        int numOfConnections = options.getInt("numOfConnections");
+        int numOfProcessors = options.getInt("numOfProcessors");
+        int heartbeatIntervalSeconds = options.getInt("heartbeatIntervalSeconds");
+        int holdSeconds = options.getInt("holdSeconds");
+        long maxHeapBytesPerConnection = options.getLong("maxHeapBytesPerConnection");
+        if (numOfConnections <= 0 || holdSeconds <= 0) {
+            throw new IllegalArgumentException("numOfConnections and holdSeconds must be positive.");
+        }
+        System.out.println("event=soak_start " + options);
+
+        SSLContext sslContext = options.isTls() ? BenchmarkSsl.createSSLContext() : null;
+        int port = BenchmarkCluster.findFreePort();
+        SocketServer server = new SocketServer();
+        server.setName("soak-server");
+        server.setPort(port);
+        server.setNumOfProcessors(numOfProcessors);
+        server.setJmxEnabled(false);
+        server.setHeartbeatIntervalSeconds(heartbeatIntervalSeconds);
+        SocketClient client = new SocketClient();
+        client.setName("soak-client");
+        client.setNumOfProcessors(numOfProcessors);
+        client.setNumOfConnectionsPerNode(numOfConnections);
+        client.setJmxEnabled(false);
+        client.setHeartbeatIntervalSeconds(heartbeatIntervalSeconds);
+        if (sslContext != null) {
+            server.setSslContext(sslContext);
+            client.setSslContext(sslContext);
+        }
+        try {
+            server.start();
+            client.open();
+            MemoryUsage baseline = MemoryUsage.measure();
+
+            long connectStartNanos = System.nanoTime();
+            client.addNode(new InetSocketAddress("127.0.0.1", port));
+            long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStartNanos);
+            awaitAccepted(server, numOfConnections);
+            MemoryUsage connected = MemoryUsage.measure();
+            System.out.println(String.format("event=soak_connected connections=%d connectMillis=%d " +
+                            "heapBytesPerConnection=%d directBytesPerConnection=%d",
+                    server.getNumOfConnections(), connectMillis,
+                    (connected.heapBytes - baseline.heapBytes) / numOfConnections,
+                    (connected.directBytes - baseline.directBytes) / numOfConnections));
+
+            // Both ends send a heartbeat to each connection once an interval
+            long cpuStartNanos = getProcessCpuTimeNanos();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(holdSeconds));
+            long cpuNanos = getProcessCpuTimeNanos() - cpuStartNanos;
+            long numOfHeartbeats = 2L * numOfConnections * holdSeconds / heartbeatIntervalSeconds;
+            MemoryUsage held = MemoryUsage.measure();
+            int alive = client.getNumOfActiveConnections();
+            long heapBytesPerConnection = (held.heapBytes - baseline.heapBytes) / numOfConnections;
+            System.out.println(String.format("event=soak_held connections=%d serverConnections=%d " +
+                            "heapBytesPerConnection=%d directBytesPerConnection=%d " +
+                            "cpuMillisPerSecond=%.1f cpuMicrosPerHeartbeat=%.2f",
+                    alive, server.getNumOfConnections(), heapBytesPerConnection,
+                    (held.directBytes - baseline.directBytes) / numOfConnections,
+                    cpuNanos < 0 ? -1.0 : cpuNanos / 1e6 / holdSeconds,
+                    cpuNanos < 0 ? -1.0 : cpuNanos / 1e3 / numOfHeartbeats));
+
+            boolean passed = alive == numOfConnections &&
+                    (maxHeapBytesPerConnection <= 0 || heapBytesPerConnection <= maxHeapBytesPerConnection);
+            System.out.println(String.format("event=soak_finish passed=%s", passed));
+            return passed;
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    private static void awaitAccepted(SocketServer server, int numOfConnections) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60 * 1000L;
+        while (server.getNumOfConnections() < numOfConnections && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+    }
+
+    // -1 if the JVM can't tell it
+    private static long getProcessCpuTimeNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1L;
+    }
+
+    private static class MemoryUsage {
+        private final long heapBytes;
+        private final long directBytes;
+
+        private MemoryUsage(long heapBytes, long directBytes) {
+            this.heapBytes = heapBytes;
+            this.directBytes = directBytes;
+        }
+
+        // After full GCs, so that only live objects are counted
+        static MemoryUsage measure() throws InterruptedException {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                Thread.sleep(100L);
+            }
+            long heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            long directBytes = 0L;
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if ("direct".equals(pool.getName())) {
+                    directBytes = pool.getMemoryUsed();
+                }
+            }
+            return new MemoryUsage(heapBytes, directBytes);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.kamatama41.nsocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Commands from clients to a server over localhost, including encoding, framing, the IO loops and the workers.
+// Benchmark threads share the client connections in round robin, so numOfConnections above the number of threads
+// only means idle connections, which is still worth comparing for the IO loops.
+@State(Scope.Benchmark)
+@Threads(4)
+public class EndToEndBenchmark {
+    // Commands which are sent but not handled by the server yet. Without a bound, the throughput of sendCommand
+    // would be the one of enqueueing into write queues.
+    private static final long MAX_OUTSTANDING_COMMANDS = 1024L;
+    private static final long DRAIN_TIMEOUT_MILLIS = 60 * 1000L;
+    @Param({"plaintext", "tls"})
+    public String transport;
+    @Param({"1", "4"})
+    public int numOfWorkers;
+    @Param({"1", "4"})
+    public int numOfProcessors;
+    @Param({"64", "4096", "65536"})
+    public int payloadBytes;
+    @Param({"1", "16"})
+    public int numOfConnections;
+    private BenchmarkCluster cluster;
+    private Payload body;
+    private AtomicLong numOfSent;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        if (!"plaintext".equals(transport) && !"tls".equals(transport)) {
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+        cluster = BenchmarkCluster.start("tls".equals(transport), numOfWorkers, numOfProcessors, numOfConnections);
+        body = Payload.ofSize(payloadBytes);
+        numOfSent = new AtomicLong(0L);
+    }
+
+    // So that commands of an iteration are never handled in the next one
+    @TearDown(Level.Iteration)
+    public void drain() throws InterruptedException {
+        cluster.awaitReceived(numOfSent.get(), DRAIN_TIMEOUT_MILLIS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        cluster.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void sendCommand(ClientConnection client) {
+        while (numOfSent.get() - cluster.getNumOfReceived() >= MAX_OUTSTANDING_COMMANDS) {
+            LockSupport.parkNanos(1000L);
+        }
+        numOfSent.incrementAndGet();
+        client.connection.sendCommand(BenchmarkCluster.CountCommand.ID, body);
+    }
+
+    // Sampled, so that the result has latency percentiles
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Payload sendSyncCommand(ClientConnection client) {
+        return client.connection.sendSyncCommand(BenchmarkCluster.EchoCommand.ID, body);
+    }
+
+    @State(Scope.Thread)
+    public static class ClientConnection {
+        private Connection connection;
+
+        @Setup(Level.Trial)
+        public void setup(EndToEndBenchmark benchmark) {
+            connection = benchmark.cluster.nextConnection();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.kamatama41.nsocket;
+
+import com.github.kamatama41.nsocket.codec.ObjectCodec;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Framing of command requests: encoding a frame as Connection#writeCommandRequest does,
+// and unpacking frames from a content buffer as Connection#onReadable does.
+@State(Scope.Benchmark)
+public class FrameBenchmark {
+    private static final int FRAMES_PER_BUFFER = 16;
+    @Param({"64", "4096", "262144"})
+    public int payloadBytes;
+    private Payload body;
+    private ByteBuffer contentBuffer;
+
+    @Setup
+    public void setup() {
+        body = Payload.ofSize(payloadBytes);
+        ByteBuffer frame = Frame.of(ObjectCodec.DEFAULT, "benchmark", 1, body).newBuffer();
+        contentBuffer = ByteBuffer.allocate(frame.remaining() * FRAMES_PER_BUFFER);
+        for (int i = 0; i < FRAMES_PER_BUFFER; i++) {
+            contentBuffer.put(frame.duplicate());
+        }
+        contentBuffer.flip();
+    }
+
+    @Benchmark
+    public ByteBuffer pack() {
+        return Frame.of(ObjectCodec.DEFAULT, "benchmark", 1, body).newBuffer();
+    }
+
+    // Per buffer of 16 frames
+    @Benchmark
+    public void unpack(Blackhole blackhole) throws IOException {
+        ByteBuffer buffer = contentBuffer.duplicate();
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(buffer)) {
+            while (unpacker.hasNext()) {
+                unpacker.getNextFormat();
+                blackhole.consume(unpacker.unpackString());
+                blackhole.consume(unpacker.getTotalReadBytes());
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.github.kamatama41.nsocket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// An open-loop load generator, which finds the saturation point of a server configuration.
+// Requests are sent at a fixed rate regardless of responses, and latency is measured from the time each request
+// was intended to be sent. So a sender which falls behind (e.g. blocked by GC) doesn't hide the delay,
+// which is the coordinated omission of closed-loop tests calling sendSyncCommand in a loop.
+// The rate is multiplied step by step until the server can't keep up with it or p99 exceeds the SLO.
+//
+// Run with "./gradlew loadGenerator -PloadArgs='--transport=tls --numOfWorkers=4'", options are:
+//   --transport=plaintext|tls, --numOfWorkers, --numOfProcessors (of the server), --numOfConnections,
+//   --numOfSenders, --payloadBytes, --startRate, --maxRate (requests/sec), --rampFactor, --stepSeconds,
+//   --sloMillis (p99), --drainSeconds, --warmupSeconds (at the start rate, not judged)
+public class LoadGenerator {
+    private static final Map<String, String> DEFAULT_OPTIONS = new HashMap<>();
+    static {
+        DEFAULT_OPTIONS.put("transport", "plaintext");
+        DEFAULT_OPTIONS.put("numOfWorkers", "1");
+        DEFAULT_OPTIONS.put("numOfProcessors", "1");
+        DEFAULT_OPTIONS.put("numOfConnections", "4");
+        DEFAULT_OPTIONS.put("numOfSenders", "2");
+        DEFAULT_OPTIONS.put("payloadBytes", "1024");
+        DEFAULT_OPTIONS.put("startRate", "1000");
+        DEFAULT_OPTIONS.put("maxRate", "1000000");
+        DEFAULT_OPTIONS.put("rampFactor", "1.5");
+        DEFAULT_OPTIONS.put("stepSeconds", "10");
+        DEFAULT_OPTIONS.put("sloMillis", "100");
+        DEFAULT_OPTIONS.put("drainSeconds", "30");
+        DEFAULT_OPTIONS.put("warmupSeconds", "5");
+    }
+    // A step whose throughput is less than this ratio of the target rate means the server can't keep up with it
+    private static final double MIN_ACHIEVED_RATIO = 0.95;
+    private final ToolOptions options;
+    private final AtomicReferenceArray<Step> steps;
+
+    LoadGenerator(ToolOptions options) {
+        this.options = options;
+        this.steps = new AtomicReferenceArray<>(1024);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(ToolOptions.parse(DEFAULT_OPTIONS, args)).run();
+    }
+
+    void run() throws IOException, InterruptedException {
+        int numOfSenders = options.getInt("numOfSenders");
+        double rampFactor = options.getDouble("rampFactor");
+        if (numOfSenders <= 0 || rampFactor <= 1.0) {
+            throw new IllegalArgumentException("numOfSenders must be positive and rampFactor must be more than 1.");
+        }
+        Payload payload = Payload.ofSize(options.getInt("payloadBytes"));
+        long stepNanos = TimeUnit.SECONDS.toNanos(options.getInt("stepSeconds"));
+        long sloNanos = TimeUnit.MILLISECONDS.toNanos(options.getInt("sloMillis"));
+        long maxRate = options.getLong("maxRate");
+        System.out.println("event=load_start " + options);
+
+        try (BenchmarkCluster cluster = BenchmarkCluster.start(options.isTls(),
+                options.getInt("numOfWorkers"), options.getInt("numOfProcessors"), options.getInt("numOfConnections"),
+                server -> server.registerCommand(new ReplyCommand()),
+                client -> client.registerCommand(new RepliedCommand(steps)))) {
+            long sustainedRate = 0L;
+            int stepIndex = 0;
+            int warmupSeconds = options.getInt("warmupSeconds");
+            if (warmupSeconds > 0) {
+                Step warmup = new Step(options.getLong("startRate"));
+                steps.set(stepIndex, warmup);
+                runStep(cluster, stepIndex, warmup, payload, TimeUnit.SECONDS.toNanos(warmupSeconds), numOfSenders);
+                boolean drained = warmup.awaitDrained(TimeUnit.SECONDS.toMillis(options.getInt("drainSeconds")));
+                System.out.println(warmup.report("load_warmup", stepIndex, drained, drained));
+                stepIndex++;
+            }
+            for (double rate = options.getLong("startRate"); rate <= maxRate; rate *= rampFactor) {
+                if (stepIndex == steps.length()) {
+                    break;
+                }
+                Step step = new Step((long) rate);
+                steps.set(stepIndex, step);
+                runStep(cluster, stepIndex, step, payload, stepNanos, numOfSenders);
+                boolean drained = step.awaitDrained(TimeUnit.SECONDS.toMillis(options.getInt("drainSeconds")));
+                double achievedRate = step.getAchievedRate();
+                long p99 = step.latencies.getValueAtPercentile(99.0);
+                boolean sustained = drained && p99 <= sloNanos && achievedRate >= step.targetRate * MIN_ACHIEVED_RATIO;
+                System.out.println(step.report("load_step", stepIndex, drained, sustained));
+                if (!sustained) {
+                    break;
+                }
+                sustainedRate = step.targetRate;
+                stepIndex++;
+            }
+            System.out.println(String.format("event=load_finish sustainedRate=%d", sustainedRate));
+        }
+    }
+
+    // Each sender owns every numOfSenders-th slot of the schedule, so that together they send at the rate.
+    private void runStep(BenchmarkCluster cluster, int stepIndex, Step step, Payload payload,
+                         long stepNanos, int numOfSenders) throws InterruptedException {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1L) / step.targetRate;
+        long numOfRequests = Math.max(1L, stepNanos / Math.max(1L, intervalNanos));
+        long startNanos = System.nanoTime();
+        step.startNanos = startNanos;
+        List<Thread> senders = new ArrayList<>(numOfSenders);
+        for (int i = 0; i < numOfSenders; i++) {
+            int senderIndex = i;
+            Thread sender = new Thread(() -> {
+                for (long n = senderIndex; n < numOfRequests; n += numOfSenders) {
+                    long intendedNanos = startNanos + n * intervalNanos;
+                    long waitNanos = intendedNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        LockSupport.parkNanos(waitNanos);
+                    }
+                    step.numOfSent.incrementAndGet();
+                    Request request = new Request(stepIndex, intendedNanos, payload.getContent());
+                    cluster.nextConnection().sendCommand(ReplyCommand.ID, request);
+                }
+            }, "load-sender-" + i);
+            senders.add(sender);
+            sender.start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+    }
+
+    private static class Step {
+        private final long targetRate;
+        private final Histogram latencies;
+        private final AtomicLong numOfSent;
+        private final AtomicLong lastRepliedNanos;
+        private volatile long startNanos;
+
+        Step(long targetRate) {
+            this.targetRate = targetRate;
+            this.latencies = new Histogram();
+            this.numOfSent = new AtomicLong(0L);
+            this.lastRepliedNanos = new AtomicLong(0L);
+        }
+
+        void onReplied(long intendedNanos) {
+            long now = System.nanoTime();
+            latencies.record(now - intendedNanos);
+            lastRepliedNanos.accumulateAndGet(now, Math::max);
+        }
+
+        boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (latencies.getCount() < numOfSent.get()) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                Thread.sleep(10L);
+            }
+            return true;
+        }
+
+        // Replies per second until the last one, so that a server which lags behind gets a lower rate.
+        double getAchievedRate() {
+            long elapsedNanos = lastRepliedNanos.get() - startNanos;
+            return elapsedNanos <= 0 ? 0.0 : latencies.getCount() * 1e9 / elapsedNanos;
+        }
+
+        String report(String event, int index, boolean drained, boolean sustained) {
+            return String.format("event=%s step=%d targetRate=%d achievedRate=%.1f sent=%d replied=%d drained=%s " +
+                            "p50Micros=%d p90Micros=%d p99Micros=%d p999Micros=%d maxMicros=%d sustained=%s",
+                    event, index, targetRate, getAchievedRate(), numOfSent.get(), latencies.getCount(), drained,
+                    toMicros(latencies.getValueAtPercentile(50.0)), toMicros(latencies.getValueAtPercentile(90.0)),
+                    toMicros(latencies.getValueAtPercentile(99.0)), toMicros(latencies.getValueAtPercentile(99.9)),
+                    toMicros(latencies.getMax()), sustained);
+        }
+
+        private static long toMicros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+
+    // The intended send time is a System.nanoTime of this process, which works as the server runs in it too.
+    public static class Request {
+        private int step;
+        private long intendedNanos;
+        private String content;
+
+        public Request() {
+        }
+
+        public Request(int step, long intendedNanos, String content) {
+            this.step = step;
+            this.intendedNanos = intendedNanos;
+            this.content = content;
+        }
+
+        public int getStep() {
+            return step;
+        }
+
+        public void setStep(int step) {
+            this.step = step;
+        }
+
+        public long getIntendedNanos() {
+            return intendedNanos;
+        }
+
+        public void setIntendedNanos(long intendedNanos) {
+            this.intendedNanos = intendedNanos;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public void setContent(String content) {
+            this.content = content;
+        }
+    }
+
+    // Replies asynchronously, since a sync command would block a sender until the response
+    static class ReplyCommand implements Command<Request> {
+        static final String ID = "load_reply";
+
+        @Override
+        public void execute(Request data, Connection connection) {
+            connection.sendCommand(RepliedCommand.ID, data);
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+
+    static class RepliedCommand implements Command<Request> {
+        static final String ID = "load_replied";
+        private final AtomicReferenceArray<Step> steps;
+
+        RepliedCommand(AtomicReferenceArray<Step> steps) {
+            this.steps = steps;
+        }
+
+        @Override
+        public void execute(Request data, Connection connection) {
+            steps.get(data.getStep()).onReplied(data.getIntendedNanos());
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.Arrays;
+
+// A command body of benchmarks, whose JSON is about as large as the content.
+public class Payload {
+    private String id;
+    private String content;
+
+    public Payload() {
+    }
+
+    public Payload(String id, String content) {
+        this.id = id;
+        this.content = content;
+    }
+
+    public static Payload ofSize(int contentBytes) {
+        char[] content = new char[contentBytes];
+        Arrays.fill(content, 'a');
+        return new Payload("payload", new String(content));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public void setContent(String content) {
+        this.content = content;
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.kamatama41.nsocket;
+
+import com.github.kamatama41.nsocket.codec.ObjectCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+@State(Scope.Benchmark)
+public class RequestMessageCodecBenchmark {
+    @Param({"64", "4096", "262144"})
+    public int payloadBytes;
+    private String bodyJson;
+    private String message;
+
+    @Setup
+    public void setup() throws IOException {
+        bodyJson = ObjectCodec.DEFAULT.encodeToJson(Payload.ofSize(payloadBytes));
+        message = RequestMessageCodec.encode("benchmark", 1, bodyJson);
+    }
+
+    @Benchmark
+    public String encode() {
+        return RequestMessageCodec.encode("benchmark", 1, bodyJson);
+    }
+
+    @Benchmark
+    public RequestMessageCodec.Decoded decode() {
+        return RequestMessageCodec.decode(message);
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+// "--key=value" options of the tools in src/jmh. Only keys which have a default are accepted.
+class ToolOptions {
+    private final Map<String, String> options;
+
+    private ToolOptions(Map<String, String> options) {
+        this.options = options;
+    }
+
+    static ToolOptions parse(Map<String, String> defaults, String[] args) {
+        Map<String, String> options = new TreeMap<>(defaults);
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Options must be --key=value: " + arg);
+            }
+            String key = arg.substring(2, separator);
+            if (!defaults.containsKey(key)) {
+                throw new IllegalArgumentException("Unknown option: " + key);
+            }
+            options.put(key, arg.substring(separator + 1));
+        }
+        return new ToolOptions(options);
+    }
+
+    String getString(String key) {
+        return options.get(key);
+    }
+
+    int getInt(String key) {
+        return Integer.parseInt(options.get(key));
+    }
+
+    long getLong(String key) {
+        return Long.parseLong(options.get(key));
+    }
+
+    double getDouble(String key) {
+        return Double.parseDouble(options.get(key));
+    }
+
+    // "plaintext" or "tls"
+    boolean isTls() {
+        String transport = options.get("transport");
+        if (!"plaintext".equals(transport) && !"tls".equals(transport)) {
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+        return "tls".equals(transport);
+    }
+
+    // key=value pairs sorted by key
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : options.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.kamatama41.nsocket.codec;
+
+import com.github.kamatama41.nsocket.Payload;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+@State(Scope.Benchmark)
+public class ObjectCodecBenchmark {
+    @Param({"64", "4096", "262144"})
+    public int payloadBytes;
+    private final ObjectCodec codec = ObjectCodec.DEFAULT;
+    private Payload body;
+    private String json;
+
+    @Setup
+    public void setup() throws IOException {
+        body = Payload.ofSize(payloadBytes);
+        json = codec.encodeToJson(body);
+    }
+
+    @Benchmark
+    public String encodeToJson() throws IOException {
+        return codec.encodeToJson(body);
+    }
+
+    @Benchmark
+    public Payload decodeFromJson() throws IOException {
+        return codec.decodeFromJson(json, Payload.class);
+    }
+}
@@ -3,8 +3,10 @@ package com.github.kamatama41.nsocket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 class Acceptor {
     private static final Logger log = LoggerFactory.getLogger(Acceptor.class);
@@ -53,13 +55,65 @@ class Acceptor {
         }
     }
 
+    void acceptLoopback(LoopbackTcpChannel client) {
+        LoopbackTcpChannel channel = LoopbackTcpChannel.accept(
+                processor.selectProcessor(), client, context.isLoopbackSerializationSkipped());
+        channel.register(new Connection(channel, worker, context));
+    }
+
+    // Limits in-progress TLS handshakes so that a reconnect storm can't occupy processors.
+    // Sockets which aren't admitted in time are closed.
+    private boolean admit(SocketChannel accepted) throws IOException {
+        SslContext sslContext = context.getSslContext();
+        if (!sslContext.isEnabled()) {
+            return true;
+        }
+        try {
+            if (sslContext.acquireHandshakePermit()) {
+                return true;
+            }
+            log.warn("Refused a connection from {} since too many TLS handshakes are in progress.", accepted.getRemoteAddress());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        accepted.close();
+        return false;
+    }
+
+    // Until a channel owns the accepted socket, the socket and the permit taken by admit() are released here.
+    // Once it does, closing the channel releases both.
+    private void open(SocketChannel accepted) throws IOException {
+        TcpChannel channel = null;
+        try {
+            channel = TcpChannel.open(accepted, accepted.getRemoteAddress(), processor.selectProcessor(), context);
+            channel.register(new Connection(channel, worker, context));
+        } catch (IOException | RuntimeException e) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                } else {
+                    if (context.getSslContext().isEnabled()) {
+                        context.getSslContext().releaseHandshakePermit();
+                    }
+                    accepted.close();
+                }
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
+        }
+    }
+
     private class Loop extends Thread {
         @Override
         public void run() {
             while (isRunning || !isInterrupted()) {
                 try {
-                    TcpChannel channel = TcpChannel.open(serverChannel.accept(), processor.selectProcessor(), context);
-                    channel.register(new Connection(channel, worker, context));
+                    SocketChannel accepted = serverChannel.accept();
+                    if (!admit(accepted)) {
+                        continue;
+                    }
+                    open(accepted);
                 } catch (ClosedByInterruptException ignored) {
                 } catch (Exception e) {
                     log.warn("An error occurred on acceptor.", e);
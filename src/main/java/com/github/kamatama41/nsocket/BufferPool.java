@@ -0,0 +1,39 @@
+package com.github.kamatama41.nsocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+// Buffers which connections hold only while they have data in them, so that idle connections don't keep any.
+// A pool belongs to a loop and must be used only on its thread, so it needs no synchronization.
+// Only a few buffers per size are kept, since a loop reads one connection at a time.
+class BufferPool {
+    private static final int MAX_POOLED_BUFFERS_PER_SIZE = 16;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> heapBuffers;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> directBuffers;
+
+    BufferPool() {
+        this.heapBuffers = new HashMap<>();
+        this.directBuffers = new HashMap<>();
+    }
+
+    // Returns a cleared buffer of the capacity
+    ByteBuffer acquire(int capacity, boolean isDirect) {
+        ArrayDeque<ByteBuffer> pooled = (isDirect ? directBuffers : heapBuffers).get(capacity);
+        ByteBuffer buffer = pooled == null ? null : pooled.pollLast();
+        if (buffer != null) {
+            return buffer;
+        }
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    void release(ByteBuffer buffer) {
+        ArrayDeque<ByteBuffer> pooled = (buffer.isDirect() ? directBuffers : heapBuffers)
+                .computeIfAbsent(buffer.capacity(), k -> new ArrayDeque<>());
+        if (pooled.size() < MAX_POOLED_BUFFERS_PER_SIZE) {
+            buffer.clear();
+            pooled.addLast(buffer);
+        }
+    }
+}
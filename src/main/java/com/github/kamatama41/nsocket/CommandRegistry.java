@@ -10,12 +10,16 @@ class CommandRegistry {
     private final Map<String, Class<?>> dataClassMap;
     private final Map<String, SyncCommand> syncCommandMap;
     private final Map<String, Class<?>> syncResultClassMap;
+    private final Map<String, StreamCommand> streamCommandMap;
+    private final Map<String, FileCommand> fileCommandMap;
 
     CommandRegistry() {
         this.commandMap = new HashMap<>();
         this.dataClassMap = new HashMap<>();
         this.syncCommandMap = new HashMap<>();
         this.syncResultClassMap = new HashMap<>();
+        this.streamCommandMap = new HashMap<>();
+        this.fileCommandMap = new HashMap<>();
     }
 
     void registerCommand(Command command) {
@@ -29,6 +33,14 @@ class CommandRegistry {
         syncResultClassMap.put(command.getId(), resolveSyncResultClass(command));
     }
 
+    void registerStreamCommand(StreamCommand command) {
+        streamCommandMap.put(command.getId(), command);
+    }
+
+    void registerFileCommand(FileCommand command) {
+        fileCommandMap.put(command.getId(), command);
+    }
+
     Command getCommand(String commandId) {
         return commandMap.get(commandId);
     }
@@ -37,6 +49,14 @@ class CommandRegistry {
         return syncCommandMap.get(commandId);
     }
 
+    StreamCommand getStreamCommand(String commandId) {
+        return streamCommandMap.get(commandId);
+    }
+
+    FileCommand getFileCommand(String commandId) {
+        return fileCommandMap.get(commandId);
+    }
+
     Class<?> getDataClass(String commandId) {
         return dataClassMap.get(commandId);
     }
@@ -2,17 +2,100 @@ package com.github.kamatama41.nsocket;
 
 class CommandRequest {
     private final String message;
+    private final byte[] compressedMessage;
+    private final String commandId;
+    private final Integer callId;
+    private final Object body;
     private final Connection connection;
+    private final int size;
+    private final long receivedNanos;
+    private TraceSpan span;
+    private long readNanos;
+    private long enqueuedNanos;
 
-    CommandRequest(String message, Connection connection) {
+    CommandRequest(String message, int size, Connection connection) {
+        this(message, null, null, null, null, size, connection);
+    }
+
+    // A request which is decompressed on the worker thread, not to block the I/O loop
+    CommandRequest(byte[] compressedMessage, int size, Connection connection) {
+        this(null, compressedMessage, null, null, null, size, connection);
+    }
+
+    // A request which is handed over without serialization
+    CommandRequest(String commandId, Integer callId, Object body, Connection connection) {
+        this(null, null, commandId, callId, body, 0, connection);
+    }
+
+    private CommandRequest(String message, byte[] compressedMessage, String commandId, Integer callId, Object body,
+                           int size, Connection connection) {
         this.message = message;
+        this.compressedMessage = compressedMessage;
+        this.commandId = commandId;
+        this.callId = callId;
+        this.body = body;
         this.connection = connection;
+        this.size = size;
+        this.receivedNanos = System.nanoTime();
     }
 
     String getMessage() {
         return message;
     }
 
+    byte[] getCompressedMessage() {
+        return compressedMessage;
+    }
+
+    boolean isCompressed() {
+        return compressedMessage != null;
+    }
+
+    boolean isDecoded() {
+        return message == null && compressedMessage == null;
+    }
+
+    String getCommandId() {
+        return commandId;
+    }
+
+    Integer getCallId() {
+        return callId;
+    }
+
+    Object getBody() {
+        return body;
+    }
+
+    // Bytes of the frame, or 0 if it was handed over without serialization
+    int getSize() {
+        return size;
+    }
+
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    // Must be called before being queued to the workers
+    void setSpan(TraceSpan span, long readNanos) {
+        this.span = span;
+        this.readNanos = readNanos;
+        this.enqueuedNanos = System.nanoTime();
+    }
+
+    // Null if the request is not traced
+    TraceSpan getSpan() {
+        return span;
+    }
+
+    long getReadNanos() {
+        return readNanos;
+    }
+
+    long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+
     Connection getConnection() {
         return connection;
     }
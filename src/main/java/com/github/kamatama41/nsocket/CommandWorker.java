@@ -4,6 +4,7 @@ import com.github.kamatama41.nsocket.codec.ObjectCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.InputStream;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -23,15 +24,20 @@ class CommandWorker {
     private final CommandRegistry commandRegistry;
     private final CommandListenerRegistry listenerRegistry;
     private final ObjectCodec codec;
+    private final Metrics metrics;
+    // Null unless tracing is enabled
+    private final TraceInterceptor tracer;
+    private final StallDetector stallDetector;
     private final ExecutorService esForSyncCommand;
+    private final ExecutorService esForStreamCommand;
     private boolean isRunning;
 
     static CommandWorker server(int numOfWorkers, Context context) {
         return new CommandWorker(numOfWorkers, context);
     }
 
-    static CommandWorker client(Context context) {
-        return new CommandWorker(1, context);
+    static CommandWorker client(int numOfWorkers, Context context) {
+        return new CommandWorker(numOfWorkers, context);
     }
 
     private CommandWorker(int numOfWorkers, Context context) {
@@ -41,6 +47,9 @@ class CommandWorker {
         this.commandRegistry = context.getCommandRegistry();
         this.listenerRegistry = context.getListenerRegistry();
         this.codec = context.getCodec();
+        this.metrics = context.getMetrics();
+        this.tracer = context.getTraceInterceptor();
+        this.stallDetector = context.getStallDetector();
         this.esForSyncCommand = Executors.newCachedThreadPool(new ThreadFactory() {
             private final AtomicInteger idCounter = new AtomicInteger(0);
             @Override
@@ -51,6 +60,16 @@ class CommandWorker {
                 return thread;
             }
         });
+        this.esForStreamCommand = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger idCounter = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName(String.format("stream-command-executor-%d", idCounter.addAndGet(1)));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         this.isRunning = false;
     }
 
@@ -83,12 +102,55 @@ class CommandWorker {
             }
         }
         esForSyncCommand.shutdown();
+        // Stream commands might be blocked in reading fragments which never come
+        esForStreamCommand.shutdownNow();
     }
 
     void addRequest(CommandRequest request) {
         requestQueue.add(request);
     }
 
+    int getNumOfQueuedRequests() {
+        return requestQueue.size();
+    }
+
+    void registerGauges() {
+        metrics.registerGauge(context.getName() + ".worker.queue", requestQueue::size);
+    }
+
+    // A stream command blocks until the whole stream arrives, so it runs out of the worker loops.
+    void runStreamCommand(StreamCommand command, InputStream stream, Connection connection) {
+        esForStreamCommand.submit(() -> {
+            try (InputStream in = stream) {
+                command.execute(in, connection);
+            } catch (Exception e) {
+                onTransferFailed(command.getId(), e, connection);
+            }
+        });
+    }
+
+    void runFileCommand(FileReceiver receiver, Connection connection) {
+        FileCommand command = receiver.getCommand();
+        esForStreamCommand.submit(() -> {
+            try {
+                if (receiver.getError() != null) {
+                    throw receiver.getError();
+                }
+                command.execute(receiver.getName(), receiver.getSize(), connection);
+            } catch (Exception e) {
+                onTransferFailed(command.getId(), e, connection);
+            }
+        });
+    }
+
+    private void onTransferFailed(String commandId, Exception e, Connection connection) {
+        log.warn("Exception occurred on command '{}'.", commandId, e);
+        listenerRegistry.fireExceptionEvent(connection, e);
+        ErrorData errorData = new ErrorData(e.getMessage());
+        errorData.setCommandId(commandId);
+        connection.sendCommand(ErrorCommand.COMMAND_ID, errorData);
+    }
+
     private class WorkerLoop extends Thread {
         @Override
         @SuppressWarnings("unchecked")
@@ -101,25 +163,63 @@ class CommandWorker {
                     if (request == null) {
                         continue;
                     }
+                    long dequeuedNanos = System.nanoTime();
                     Connection connection = request.getConnection();
-                    RequestMessageCodec.Decoded decoded = RequestMessageCodec.decode(request.getMessage());
+                    Integer callId;
+                    String bodyJson = null;
+                    if (request.isDecoded()) {
+                        commandId = request.getCommandId();
+                        callId = request.getCallId();
+                    } else {
+                        String message = request.isCompressed() ?
+                                Frame.decompress(request.getCompressedMessage(), context) : request.getMessage();
+                        RequestMessageCodec.Decoded decoded = RequestMessageCodec.decode(message);
+                        commandId = decoded.getCommandId();
+                        callId = decoded.getCallId();
+                        bodyJson = decoded.getBodyJson();
+                    }
 
-                    commandId = decoded.getCommandId();
                     Class<?> dataClass = commandRegistry.getDataClass(commandId);
                     if (dataClass == null) {
                         log.warn("DataClass for '{}' not found.", commandId);
                         continue;
                     }
-                    Object body = codec.decodeFromJson(decoded.getBodyJson(), dataClass);
+                    Object body = request.isDecoded() ? request.getBody() : codec.decodeFromJson(bodyJson, dataClass);
+                    // An object passed as is by loopback may be of another class than the command takes,
+                    // then it's converted through JSON as it would have been by serialization.
+                    if (body != null && !dataClass.isInstance(body)) {
+                        body = codec.decodeFromJson(codec.encodeToJson(body), dataClass);
+                    }
+                    long decodedNanos = System.nanoTime();
+                    if (metrics.isEnabled()) {
+                        metrics.recordReceived(commandId, request.getSize());
+                        metrics.recordLatency(commandId, Metrics.Stage.QUEUE_WAIT, dequeuedNanos - request.getReceivedNanos());
+                        metrics.recordLatency(commandId, Metrics.Stage.DECODE, decodedNanos - dequeuedNanos);
+                    }
+                    TraceSpan span = request.getSpan();
+                    if (tracer != null && span != null) {
+                        interceptReceived(request, commandId, dequeuedNanos, decodedNanos);
+                    }
 
                     Command command = commandRegistry.getCommand(commandId);
                     if (command != null) {
-                        command.execute(body, connection);
+                        if (span != null) {
+                            TraceSpan.setCurrent(span);
+                        }
+                        try {
+                            command.execute(body, connection);
+                        } finally {
+                            if (span != null) {
+                                TraceSpan.setCurrent(null);
+                            }
+                            onHandled(commandId, request, decodedNanos);
+                            intercept(TraceInterceptor.Hook.HANDLER_DONE, span, commandId, connection);
+                        }
                         continue;
                     }
                     SyncCommand syncCommand = commandRegistry.getSyncCommand(commandId);
                     if (syncCommand != null) {
-                        runSyncCommand(syncCommand, commandId, decoded.getCallId(), body, connection);
+                        runSyncCommand(syncCommand, commandId, callId, body, request);
                         continue;
                     }
 
@@ -140,20 +240,61 @@ class CommandWorker {
                     if (commandId != null) {
                         errorData.setCommandId(commandId);
                     }
-                    request.getConnection().sendCommand(ErrorCommand.COMMAND_ID, errorData);
+                    request.getConnection().sendCommand(ErrorCommand.COMMAND_ID, errorData, request.getSpan());
                 }
             }
         }
     }
 
+    private void interceptReceived(CommandRequest request, String commandId, long dequeuedNanos, long decodedNanos) {
+        TraceSpan span = request.getSpan();
+        Connection connection = request.getConnection();
+        tracer.intercept(TraceInterceptor.Hook.BYTES_RECEIVED, span, commandId, connection, request.getReadNanos());
+        tracer.intercept(TraceInterceptor.Hook.FRAME_DECODED, span, commandId, connection, request.getReceivedNanos());
+        tracer.intercept(TraceInterceptor.Hook.ENQUEUED, span, commandId, connection, request.getEnqueuedNanos());
+        tracer.intercept(TraceInterceptor.Hook.DEQUEUED, span, commandId, connection, dequeuedNanos);
+        tracer.intercept(TraceInterceptor.Hook.BODY_DECODED, span, commandId, connection, decodedNanos);
+    }
+
+    private void intercept(TraceInterceptor.Hook hook, TraceSpan span, String commandId, Connection connection) {
+        if (tracer != null && span != null) {
+            tracer.intercept(hook, span, commandId, connection, System.nanoTime());
+        }
+    }
+
+    private void onHandled(String commandId, CommandRequest request, long startNanos) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (metrics.isEnabled()) {
+            metrics.recordLatency(commandId, Metrics.Stage.HANDLER, elapsedNanos);
+        }
+        stallDetector.onCommandHandled(commandId, request.getConnection(), request.getSize(), elapsedNanos);
+    }
+
     @SuppressWarnings("unchecked")
     private void runSyncCommand(
-            SyncCommand syncCommand, String commandId, Integer callId, Object data, Connection connection) {
-        Future<Object> future = esForSyncCommand.submit(() -> syncCommand.apply(data, connection));
+            SyncCommand syncCommand, String commandId, Integer callId, Object data, CommandRequest request) {
+        Connection connection = request.getConnection();
+        TraceSpan span = request.getSpan();
+        long startNanos = System.nanoTime();
+        Future<Object> future = esForSyncCommand.submit(() -> {
+            if (span == null) {
+                return syncCommand.apply(data, connection);
+            }
+            TraceSpan.setCurrent(span);
+            try {
+                return syncCommand.apply(data, connection);
+            } finally {
+                TraceSpan.setCurrent(null);
+            }
+        });
         SyncResultData resultData = new SyncResultData(commandId, callId);
         try {
             Object result = future.get(syncCommand.getTimeoutMillis(), TimeUnit.MILLISECONDS);
-            resultData.setResultJson(codec.encodeToJson(result));
+            if (connection.isSerializationSkipped()) {
+                resultData.setResult(result);
+            } else {
+                resultData.setResultJson(codec.encodeToJson(result));
+            }
             resultData.setStatus(SyncResultData.Status.SUCCEEDED);
         } catch (TimeoutException e) {
             resultData.setStatus(SyncResultData.Status.TIMEOUT);
@@ -167,7 +308,9 @@ class CommandWorker {
             resultData.setErrorMessage(e.getMessage());
             throw new SyncCommandException(e);
         } finally {
-            connection.sendCommand(SyncResultCommand.ID, resultData);
+            onHandled(commandId, request, startNanos);
+            intercept(TraceInterceptor.Hook.HANDLER_DONE, span, commandId, connection);
+            connection.sendCommand(SyncResultCommand.ID, resultData, span);
         }
     }
 }
@@ -0,0 +1,17 @@
+package com.github.kamatama41.nsocket;
+
+// Tells the peer the names of compressors which this side is able to decompress.
+// Peers which don't know this command just ignore it, and are never sent compressed frames.
+class CompressionCommand implements Command<String[]> {
+    static final String ID = "__compression";
+
+    @Override
+    public void execute(String[] compressorNames, Connection connection) {
+        connection.onCompressionOffered(compressorNames);
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
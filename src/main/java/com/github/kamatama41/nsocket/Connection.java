@@ -1,26 +1,39 @@
 package com.github.kamatama41.nsocket;
 
+import com.github.kamatama41.nsocket.codec.Compressor;
 import com.github.kamatama41.nsocket.codec.ObjectCodec;
-import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.ExtensionTypeHeader;
 import org.msgpack.core.MessageInsufficientBufferException;
 import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.ValueType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Connection {
     private static final AtomicInteger CONNECTION_ID_COUNTER = new AtomicInteger(1);
+    private static final double LATENCY_EWMA_WEIGHT = 0.2;
     protected final Logger log = LoggerFactory.getLogger(this.getClass());
     private int connectionId;
     private final TcpChannel channel;
@@ -30,11 +43,45 @@ public class Connection {
     private final CommandRegistry commandRegistry;
     private final CommandListenerRegistry listenerRegistry;
     private final CommandWorker worker;
+    private final Metrics metrics;
+    // Null unless tracing is enabled
+    private final TraceInterceptor tracer;
     private final CountDownLatch connectionTimer;
-    private final Queue<ByteBuffer> writeQueue;
+    // ByteBuffers of frames, TracedBuffers and FileRegions
+    private final Queue<Object> writeQueue;
+    // Null unless metrics are enabled
+    private final WriteTimestamps writeTimestamps;
+    private final AtomicInteger numOfPendingWrites;
+    private final AtomicInteger numOfInFlightSyncRequests;
+    private final AtomicLong numOfPendingWriteBytes;
+    private final AtomicLong latencyEwmaBits;
+    private final AtomicLong numOfReceivedMessages;
+    private final AtomicLong receivedBytes;
+    private final AtomicLong numOfSentMessages;
+    private final AtomicLong sentBytes;
+    private volatile long lastReadTime;
+    private volatile long lastWriteTime;
+    private volatile int contentBufferCapacity;
+    // The capacity of the buffer taken from the pool, which is returned only if it hasn't been expanded
+    private int pooledContentBufferCapacity;
+    private final AtomicBoolean isCompressionOffered;
+    private volatile Compressor compressor;
+    private final AtomicInteger streamIdCounter;
+    private final Map<Integer, FragmentedInputStream> inboundStreams;
+    private final Object writableMonitor;
+    private final AtomicInteger numOfWritableWaiters;
+    private boolean isReadSuspended;
+    private FileReceiver fileReceiver;
+    // The span of a trace header which precedes the next frame
+    private TraceSpan pendingSpan;
+    private long lastReadNanos;
+    // Taken from the pool of the loop while it has data, null while the connection is idle
     private ByteBuffer contentBuffer;
     private Object attachment;
     private long lastHeartbeatTime;
+    // Only used on the IO loop to find slow consumers
+    private long lastWriteQueueDrainedNanos;
+    private boolean isSlowConsumerReported;
     private boolean isClosed;
 
     Connection(TcpChannel channel, CommandWorker worker, Context context) {
@@ -45,10 +92,32 @@ public class Connection {
         this.syncManager = context.getSyncManager();
         this.commandRegistry = context.getCommandRegistry();
         this.listenerRegistry = context.getListenerRegistry();
+        this.metrics = context.getMetrics();
+        this.tracer = context.getTraceInterceptor();
         this.writeQueue = new ConcurrentLinkedQueue<>();
+        this.writeTimestamps = metrics.isEnabled() ? new WriteTimestamps() : null;
+        this.numOfPendingWrites = new AtomicInteger(0);
+        this.numOfInFlightSyncRequests = new AtomicInteger(0);
+        this.numOfPendingWriteBytes = new AtomicLong(0L);
+        this.latencyEwmaBits = new AtomicLong(Double.doubleToLongBits(0.0));
+        this.numOfReceivedMessages = new AtomicLong(0L);
+        this.receivedBytes = new AtomicLong(0L);
+        this.numOfSentMessages = new AtomicLong(0L);
+        this.sentBytes = new AtomicLong(0L);
+        this.lastReadTime = 0L;
+        this.lastWriteTime = 0L;
+        this.isCompressionOffered = new AtomicBoolean(false);
+        this.streamIdCounter = new AtomicInteger(0);
+        this.inboundStreams = new ConcurrentHashMap<>();
+        this.writableMonitor = new Object();
+        this.numOfWritableWaiters = new AtomicInteger(0);
+        this.isReadSuspended = false;
         this.connectionTimer = new CountDownLatch(1);
-        this.contentBuffer = ByteBuffer.allocate(context.getDefaultContentBufferSize());
+        this.contentBuffer = null;
+        this.contentBufferCapacity = 0;
         this.lastHeartbeatTime = System.currentTimeMillis();
+        this.lastWriteQueueDrainedNanos = System.nanoTime();
+        this.isSlowConsumerReported = false;
         this.isClosed = false;
     }
 
@@ -65,6 +134,10 @@ public class Connection {
     }
 
     void notifyConnected() {
+        // Offer before being connected, so that it precedes the first command of users.
+        if (context.isCompressionEnabled()) {
+            offerCompression();
+        }
         connectionTimer.countDown();
         listenerRegistry.fireConnectedEvent(this);
     }
@@ -90,15 +163,20 @@ public class Connection {
     public <R> R sendSyncCommand(String id, Object body) {
         SyncCommand syncCommand = commandRegistry.getSyncCommand(id);
         SyncManager.Request request = syncManager.registerNewRequest();
-        writeCommandRequest(id, request.getCallId(), body);
+        numOfInFlightSyncRequests.incrementAndGet();
         try {
+            long startTime = System.nanoTime();
+            writeCommandRequest(id, request.getCallId(), body);
             long timeoutMillis = syncCommand.getTimeoutMillis() + 100L; // Add a buffer of networking
             boolean completed = request.waitUntilCompleted(timeoutMillis);
             if (!completed) {
                 throw new SyncCommandException("A sync command could not return response");
             }
+            updateLatencyEwma(System.nanoTime() - startTime);
         } catch (InterruptedException e) {
             throw new SyncCommandException("A sync command is interrupted");
+        } finally {
+            numOfInFlightSyncRequests.decrementAndGet();
         }
 
         SyncResultData result = request.getResult();
@@ -116,6 +194,46 @@ public class Connection {
         return channel.isOpen();
     }
 
+    public void subscribe(String topic) {
+        sendCommand(SubscribeCommand.ID, topic);
+    }
+
+    public void unsubscribe(String topic) {
+        sendCommand(UnsubscribeCommand.ID, topic);
+    }
+
+    // Returns false while the bytes waiting in the write queue exceed the high water mark.
+    public boolean isWritable() {
+        return numOfPendingWriteBytes.get() < context.getWriteQueueHighWaterMark();
+    }
+
+    public ConnectionStats getStats() {
+        SocketAddress remoteAddress = getRemoteSocketAddress();
+        return new ConnectionStats(connectionId, remoteAddress == null ? null : remoteAddress.toString(),
+                numOfReceivedMessages.get(), receivedBytes.get(), numOfSentMessages.get(), sentBytes.get(),
+                numOfPendingWriteBytes.get(), contentBufferCapacity, channel.getBufferCapacity(),
+                lastReadTime, lastWriteTime, numOfInFlightSyncRequests.get());
+    }
+
+    int getNumOfPendingRequests() {
+        return numOfPendingWrites.get() + numOfInFlightSyncRequests.get();
+    }
+
+    double getLatencyEwmaNanos() {
+        return Double.longBitsToDouble(latencyEwmaBits.get());
+    }
+
+    private void updateLatencyEwma(long latencyNanos) {
+        long currentBits, newBits;
+        do {
+            currentBits = latencyEwmaBits.get();
+            double current = Double.longBitsToDouble(currentBits);
+            double updated = current == 0.0 ? latencyNanos :
+                    current + LATENCY_EWMA_WEIGHT * (latencyNanos - current);
+            newBits = Double.doubleToLongBits(updated);
+        } while (!latencyEwmaBits.compareAndSet(currentBits, newBits));
+    }
+
     public void attach(Object attachment) {
         this.attachment = attachment;
     }
@@ -124,6 +242,8 @@ public class Connection {
         return attachment;
     }
 
+    // The content buffer isn't returned to the pool, which only the loop may use while this can be called
+    // by any thread. It's left to GC like the buffers of the channel.
     public synchronized void close() throws IOException {
         log.trace("Closing connection.");
         if (isClosed) {
@@ -131,50 +251,148 @@ public class Connection {
         }
         channel.close();
         isClosed = true;
+        for (FragmentedInputStream stream : inboundStreams.values()) {
+            stream.fail(new IOException("Connection closed."));
+        }
+        inboundStreams.clear();
+        if (fileReceiver != null) {
+            fileReceiver.release();
+        }
+        releaseWriteQueue();
+        if (writeTimestamps != null) {
+            writeTimestamps.clear();
+        }
         listenerRegistry.fireDisconnectedEvent(this);
     }
 
+    IOProcessor.Loop getBelongingTo() {
+        return channel.getBelongingTo();
+    }
+
     void onConnectable() throws IOException {
         channel.finishConnect(this);
     }
 
     void onWritable() throws IOException {
+        if (!channel.flush()) {
+            return;
+        }
         if (writeQueue.isEmpty()) {
-            channel.overrideInterest(SelectionKey.OP_READ);
+            onWriteQueueDrained();
+            channel.overrideInterest(readInterest());
             return;
         }
 
-        ByteBuffer buffer;
-        while ((buffer = writeQueue.peek()) != null) {
-            channel.write(buffer);
-            if (buffer.remaining() != 0) {
-                return;
-            } else {
-                writeQueue.poll();
+        Object queued;
+        try {
+            while ((queued = writeQueue.peek()) != null) {
+                if (queued instanceof FileRegion) {
+                    FileRegion region = (FileRegion) queued;
+                    if (!region.transferTo(channel)) {
+                        return;
+                    }
+                    region.release();
+                    writeQueue.poll();
+                    onSent(region.size());
+                    onDequeued();
+                    numOfPendingWrites.decrementAndGet();
+                    continue;
+                }
+                ByteBuffer buffer = queued instanceof TracedBuffer ?
+                        ((TracedBuffer) queued).getBuffer() : (ByteBuffer) queued;
+                int remaining = buffer.remaining();
+                channel.write(buffer);
+                int written = remaining - buffer.remaining();
+                numOfPendingWriteBytes.addAndGet(-written);
+                if (buffer.remaining() != 0) {
+                    sentBytes.addAndGet(written);
+                    return;
+                } else {
+                    writeQueue.poll();
+                    onSent(written);
+                    onDequeued();
+                    if (queued instanceof TracedBuffer) {
+                        onFlushed((TracedBuffer) queued);
+                    }
+                    numOfPendingWrites.decrementAndGet();
+                }
             }
+        } finally {
+            notifyWritable();
+        }
+        onWriteQueueDrained();
+        channel.overrideInterest(readInterest());
+    }
+
+    private void onSent(long bytes) {
+        numOfSentMessages.incrementAndGet();
+        sentBytes.addAndGet(bytes);
+        lastWriteTime = System.currentTimeMillis();
+    }
+
+    private void onWriteQueueDrained() {
+        if (context.getStallDetector().isSlowConsumerEnabled()) {
+            lastWriteQueueDrainedNanos = System.nanoTime();
+            isSlowConsumerReported = false;
+        }
+    }
+
+    // A connection is a slow consumer if its write queue has not been drained for longer than the threshold.
+    // It is reported once until the queue is drained.
+    void checkSlowConsumer(StallDetector stallDetector, long now) {
+        int queuedWrites = numOfPendingWrites.get();
+        if (queuedWrites == 0) {
+            lastWriteQueueDrainedNanos = now;
+            isSlowConsumerReported = false;
+            return;
+        }
+        long stalledNanos = now - lastWriteQueueDrainedNanos;
+        if (!isSlowConsumerReported && stallDetector.isSlowConsumer(stalledNanos)) {
+            isSlowConsumerReported = true;
+            stallDetector.onSlowConsumer(this, queuedWrites, numOfPendingWriteBytes.get(), stalledNanos);
         }
-        channel.overrideInterest(SelectionKey.OP_READ);
+    }
+
+    private int readInterest() {
+        return isReadSuspended ? 0 : SelectionKey.OP_READ;
     }
 
     void onReadable() throws IOException {
+        if (isReadSuspended) {
+            return;
+        }
         if (!isOpen()) {
             close();
             return;
         }
+        if (contentBuffer == null) {
+            contentBuffer = getBelongingTo().getBufferPool().acquire(context.getDefaultContentBufferSize(), false);
+            contentBufferCapacity = contentBuffer.capacity();
+            pooledContentBufferCapacity = contentBuffer.capacity();
+        }
         if (doRead() == -1) {
             close();
             return;
         }
+        if (tracer != null) {
+            lastReadNanos = System.nanoTime();
+        }
 
         contentBuffer.flip();
-        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(contentBuffer)) {
-            while (unpacker.hasNext()) {
-                String json = unpacker.unpackString();
-                worker.addRequest(new CommandRequest(json, this));
-                contentBuffer.position((int) unpacker.getTotalReadBytes());
-                log.trace("unpacked {}/{}\n{}", contentBuffer.position(), contentBuffer.limit(), json);
+        try {
+            while (!isReadSuspended && contentBuffer.hasRemaining()) {
+                if (fileReceiver != null) {
+                    receiveFile();
+                    continue;
+                }
+                unpackFrames();
+                if (fileReceiver == null) {
+                    break;
+                }
             }
-            contentBuffer.clear();
+            // Frames after a suspension are left in the buffer until reading is resumed
+            contentBuffer.compact();
+            releaseDrainedContentBuffer();
         } catch (MessageInsufficientBufferException e) {
             contentBuffer.compact();
             if (!contentBuffer.hasRemaining()) {
@@ -185,11 +403,83 @@ public class Connection {
         }
     }
 
+    // An expanded buffer is kept, since the connection is likely to receive large frames again
+    // and it would otherwise be expanded for each of them.
+    private void releaseDrainedContentBuffer() {
+        if (contentBuffer.position() == 0 && contentBuffer.capacity() == pooledContentBufferCapacity) {
+            getBelongingTo().getBufferPool().release(contentBuffer);
+            contentBuffer = null;
+            contentBufferCapacity = 0;
+        }
+    }
+
+    // Unpacks frames until the content buffer runs out, reading is suspended or the content of a file starts.
+    private void unpackFrames() throws IOException {
+        int start = contentBuffer.position();
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(contentBuffer)) {
+            while (!isReadSuspended && fileReceiver == null && unpacker.hasNext()) {
+                if (unpacker.getNextFormat().getValueType() == ValueType.EXTENSION) {
+                    ExtensionTypeHeader header = unpacker.unpackExtensionTypeHeader();
+                    if (header.getType() == Frame.COMPRESSED_EXT_TYPE) {
+                        byte[] compressed = unpacker.readPayload(header.getLength());
+                        addRequest(new CommandRequest(compressed, frameSize(unpacker, start), this));
+                    } else if (header.getType() == Frame.STREAM_FRAGMENT_EXT_TYPE) {
+                        // The payload is msgpack, so it is read in place to avoid copying fragments twice
+                        String commandId = onStreamFragment(unpacker);
+                        if (commandId != null && metrics.isEnabled()) {
+                            metrics.recordReceived(commandId, frameSize(unpacker, start));
+                        }
+                    } else if (header.getType() == Frame.FILE_HEADER_EXT_TYPE) {
+                        onFileHeader(unpacker);
+                    } else if (header.getType() == Frame.TRACE_HEADER_EXT_TYPE) {
+                        pendingSpan = Frame.readTraceHeader(unpacker);
+                    } else {
+                        throw new IOException(String.format("Unknown frame type: %d", header.getType()));
+                    }
+                    contentBuffer.position(start + (int) unpacker.getTotalReadBytes());
+                    // A trace header is a part of the next frame
+                    if (header.getType() != Frame.TRACE_HEADER_EXT_TYPE) {
+                        numOfReceivedMessages.incrementAndGet();
+                    }
+                    log.trace("unpacked {}/{} (ext type {})", contentBuffer.position(), contentBuffer.limit(), header.getType());
+                    continue;
+                }
+                String json = unpacker.unpackString();
+                addRequest(new CommandRequest(json, frameSize(unpacker, start), this));
+                contentBuffer.position(start + (int) unpacker.getTotalReadBytes());
+                numOfReceivedMessages.incrementAndGet();
+                log.trace("unpacked {}/{}\n{}", contentBuffer.position(), contentBuffer.limit(), json);
+            }
+        }
+    }
+
+    // A frame without a trace header starts a new trace if tracing is enabled on this side.
+    private void addRequest(CommandRequest request) {
+        TraceSpan span = pendingSpan;
+        pendingSpan = null;
+        if (span == null && tracer != null) {
+            span = TraceSpan.root();
+        }
+        if (span != null) {
+            request.setSpan(span, lastReadNanos);
+        }
+        worker.addRequest(request);
+    }
+
+    // Bytes of the frame which has just been unpacked
+    private int frameSize(MessageUnpacker unpacker, int start) {
+        return start + (int) unpacker.getTotalReadBytes() - contentBuffer.position();
+    }
+
     private int doRead() throws IOException {
         int read;
         try {
             do {
                 read = channel.read(contentBuffer);
+                if (read > 0) {
+                    receivedBytes.addAndGet(read);
+                    lastReadTime = System.currentTimeMillis();
+                }
             } while (contentBuffer.hasRemaining() && read > 0);
         } catch (InsufficientInboundBufferException e) {
             int currentCapacity = contentBuffer.capacity();
@@ -203,9 +493,14 @@ public class Connection {
     void sendHeartbeat() throws IOException {
         long timeout = context.getHeartbeatIntervalSeconds() * 3 * 1000;
         long now = System.currentTimeMillis();
-        if (now - lastHeartbeatTime >= timeout) {
+        // Heartbeats of the peer wait behind the fragments in the channel while a full stream buffer suspends
+        // reading, so that time isn't counted against the peer. Any bytes read prove it's alive as well.
+        if (isReadSuspended) {
+            updateLastHeartbeatTime();
+        } else if (now - Math.max(lastHeartbeatTime, lastReadTime) >= timeout) {
             log.warn("Connection might be dead.");
             close();
+            return;
         }
         sendCommand(HeartbeatCommand.ID, null);
     }
@@ -222,22 +517,351 @@ public class Connection {
         newBuffer.put(contentBuffer);
         newBuffer.position(currentPos);
         contentBuffer = newBuffer;
+        contentBufferCapacity = newBuffer.capacity();
+        context.recordContentBufferExpansion();
     }
 
-    private void write(ByteBuffer data) {
+    private void write(ByteBuffer data, String commandId) {
+        write(data, data, commandId);
+    }
+
+    private void write(Object entry, ByteBuffer data, String commandId) {
         if (isOpen()) {
-            writeQueue.add(data);
+            numOfPendingWriteBytes.addAndGet(data.remaining());
+            enqueue(entry, commandId, data.remaining());
+            if (!isOpen()) {
+                releaseWriteQueue();
+                return;
+            }
+            numOfPendingWrites.incrementAndGet();
             channel.enableInterest(SelectionKey.OP_WRITE);
         }
     }
 
-    private void writeCommandRequest(String commandId, Integer callId, Object body) {
-        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
-            String message = RequestMessageCodec.encode(commandId, callId, codec.encodeToJson(body));
-            packer.packString(message);
-            write(ByteBuffer.wrap(packer.toByteArray()));
+    // Writers check isOpen() without the lock of close(), so one may enqueue after close() drained the queue.
+    // The channel is closed before the drain, so the writer sees it closed afterwards and drains the queue again.
+    private void releaseWriteQueue() {
+        Object queued;
+        while ((queued = writeQueue.poll()) != null) {
+            if (queued instanceof FileRegion) {
+                ((FileRegion) queued).release();
+            }
+        }
+    }
+
+    private void enqueue(Object data, String commandId, long bytes) {
+        if (writeTimestamps == null) {
+            writeQueue.add(data);
+            return;
+        }
+        metrics.recordSent(commandId, bytes);
+        // Timestamps must be in the same order as the queue
+        synchronized (writeTimestamps) {
+            writeTimestamps.add(commandId, System.nanoTime());
+            writeQueue.add(data);
+        }
+    }
+
+    private void onDequeued() {
+        if (writeTimestamps != null) {
+            writeTimestamps.poll(metrics, System.nanoTime());
+        }
+    }
+
+    private void onFlushed(TracedBuffer traced) {
+        if (tracer != null) {
+            tracer.intercept(TraceInterceptor.Hook.WRITE_FLUSHED, traced.getSpan(), traced.getCommandId(), this, System.nanoTime());
+        }
+    }
+
+    // Sends a file after a header frame, then a FileCommand of the peer writes it to a file as it arrives.
+    // The file is not loaded into the heap, and plaintext channels send it with FileChannel#transferTo.
+    // This returns immediately and the file is closed after being sent.
+    public void sendFile(String commandId, Path path) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        long size;
+        try {
+            size = file.size();
         } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            file.close();
+            throw e;
+        }
+        Path fileName = path.getFileName();
+        writeFile(commandId, fileName == null ? null : fileName.toString(), file, 0L, size, true);
+    }
+
+    // The file is left open, and must not be closed until it is sent.
+    public void sendFile(String commandId, String name, FileChannel file, long position, long count) {
+        writeFile(commandId, name, file, position, count, false);
+    }
+
+    private void writeFile(String commandId, String name, FileChannel file, long position, long count, boolean isOwned) {
+        FileRegion region = new FileRegion(Frame.fileHeader(commandId, name, count), file, position, count, isOwned);
+        if (!isOpen()) {
+            region.release();
+            return;
+        }
+        // Content of files is not in the heap, so it doesn't count toward the high water mark
+        enqueue(region, commandId, count);
+        if (!isOpen()) {
+            releaseWriteQueue();
+            return;
+        }
+        numOfPendingWrites.incrementAndGet();
+        channel.enableInterest(SelectionKey.OP_WRITE);
+    }
+
+    void writeFrame(Frame frame) {
+        if (channel.isSerializationSkipped()) {
+            if (isOpen()) {
+                if (metrics.isEnabled()) {
+                    metrics.recordSent(frame.getCommandId(), 0L);
+                }
+                onSent(0L);
+                ((LoopbackTcpChannel) channel).transferObject(frame.getCommandId(), frame.getCallId(), frame.getBody(), frame.getSpan());
+            }
+            return;
+        }
+        ByteBuffer buffer = frame.newBuffer(compressor, context.getCompressionThresholdBytes());
+        TraceSpan span = frame.getSpan();
+        if (span == null) {
+            write(buffer, frame.getCommandId());
+            return;
+        }
+        TracedBuffer traced = new TracedBuffer(Frame.withTraceHeader(span, buffer), span, frame.getCommandId());
+        write(traced, traced.getBuffer(), frame.getCommandId());
+        if (tracer != null) {
+            tracer.intercept(TraceInterceptor.Hook.WRITE_QUEUED, span, frame.getCommandId(), this, System.nanoTime());
+        }
+    }
+
+    boolean isSerializationSkipped() {
+        return channel.isSerializationSkipped();
+    }
+
+    // Compression is used only after the peer tells which compressors it has,
+    // so peers which don't support it keep receiving plain frames.
+    void onCompressionOffered(String[] compressorNames) {
+        if (context.isCompressionEnabled()) {
+            compressor = context.selectCompressor(compressorNames);
+            log.debug("Negotiated compressor: {}", compressor == null ? null : compressor.getName());
+        }
+        // A peer may compress even if this side doesn't, so answer with what this side can decompress.
+        offerCompression();
+    }
+
+    private void offerCompression() {
+        if (!isSerializationSkipped() && isCompressionOffered.compareAndSet(false, true)) {
+            sendCommand(CompressionCommand.ID, context.getCompressorNames());
+        }
+    }
+
+    // Sends the content of a blocking source in fragments of a fixed size, to a StreamCommand of the peer.
+    // This blocks while the write queue is over the high water mark, so the whole content is never held in memory.
+    public void sendStream(String commandId, InputStream source) throws IOException {
+        sendStream(commandId, Channels.newChannel(source));
+    }
+
+    public void sendStream(String commandId, ReadableByteChannel source) throws IOException {
+        int streamId = streamIdCounter.getAndIncrement();
+        ByteBuffer fragment = ByteBuffer.allocate(context.getStreamFragmentSize());
+        String firstCommandId = commandId;
+        boolean isLast = false;
+        try {
+            while (!isLast) {
+                fragment.clear();
+                while (fragment.hasRemaining()) {
+                    if (source.read(fragment) == -1) {
+                        isLast = true;
+                        break;
+                    }
+                }
+                fragment.flip();
+                awaitWritable();
+                write(Frame.streamFragment(streamId, firstCommandId, isLast ? Frame.FRAGMENT_LAST : 0, fragment), commandId);
+                firstCommandId = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (isOpen()) {
+                fragment.clear().flip();
+                write(Frame.streamFragment(streamId, firstCommandId, Frame.FRAGMENT_ABORTED, fragment), commandId);
+            }
+            throw e;
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        if (isWritable()) {
+            return;
+        }
+        numOfWritableWaiters.incrementAndGet();
+        try {
+            synchronized (writableMonitor) {
+                while (isOpen() && !isWritable()) {
+                    writableMonitor.wait(100L);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the write queue to drain.");
+        } finally {
+            numOfWritableWaiters.decrementAndGet();
+        }
+        if (!isOpen()) {
+            throw new IOException("Connection closed.");
+        }
+    }
+
+    private void notifyWritable() {
+        if (numOfWritableWaiters.get() > 0 && isWritable()) {
+            synchronized (writableMonitor) {
+                writableMonitor.notifyAll();
+            }
+        }
+    }
+
+    // Returns the command ID of the stream, or null if it is discarded.
+    private String onStreamFragment(MessageUnpacker unpacker) throws IOException {
+        int streamId = unpacker.unpackInt();
+        String commandId = unpacker.tryUnpackNil() ? null : unpacker.unpackString();
+        int flags = unpacker.unpackInt();
+        byte[] data = unpacker.readPayload(unpacker.unpackBinaryHeader());
+
+        FragmentedInputStream stream;
+        if (commandId != null) {
+            stream = startStream(streamId, commandId);
+        } else {
+            stream = inboundStreams.get(streamId);
+        }
+        if (stream == null) {
+            // The rest of a stream which has no command
+            return null;
+        }
+        if ((flags & Frame.FRAGMENT_ABORTED) != 0) {
+            inboundStreams.remove(streamId);
+            stream.fail(new IOException("Stream aborted by the peer."));
+            return stream.getCommandId();
+        }
+        if (!stream.offer(data)) {
+            suspendReading();
+        }
+        if ((flags & Frame.FRAGMENT_LAST) != 0) {
+            inboundStreams.remove(streamId);
+            stream.end();
+        }
+        return stream.getCommandId();
+    }
+
+    private void onFileHeader(MessageUnpacker unpacker) throws IOException {
+        String commandId = unpacker.unpackString();
+        String name = unpacker.tryUnpackNil() ? null : unpacker.unpackString();
+        long size = unpacker.unpackLong();
+
+        FileCommand command = commandRegistry.getFileCommand(commandId);
+        FileChannel target = null;
+        if (command == null) {
+            log.warn("FileCommand '{}' not found.", commandId);
+        } else {
+            try {
+                target = command.open(name, size, this);
+            } catch (IOException e) {
+                log.warn("Failed to open a file '{}'. The content is discarded.", name, e);
+                listenerRegistry.fireExceptionEvent(this, e);
+            }
+        }
+        fileReceiver = new FileReceiver(command, name, size, target);
+        if (size == 0) {
+            finishReceivingFile();
+        }
+    }
+
+    private void receiveFile() {
+        if (fileReceiver.receive(contentBuffer)) {
+            finishReceivingFile();
+        }
+    }
+
+    private void finishReceivingFile() {
+        FileReceiver receiver = fileReceiver;
+        fileReceiver = null;
+        receiver.release();
+        if (receiver.getCommand() != null) {
+            if (metrics.isEnabled()) {
+                metrics.recordReceived(receiver.getCommand().getId(), receiver.getSize());
+            }
+            worker.runFileCommand(receiver, this);
+        }
+    }
+
+    private FragmentedInputStream startStream(int streamId, String commandId) {
+        StreamCommand command = commandRegistry.getStreamCommand(commandId);
+        if (command == null) {
+            log.warn("StreamCommand '{}' not found.", commandId);
+            return null;
+        }
+        FragmentedInputStream stream = new FragmentedInputStream(commandId, this, context.getMaxBufferedStreamFragments());
+        inboundStreams.put(streamId, stream);
+        worker.runStreamCommand(command, stream, this);
+        return stream;
+    }
+
+    boolean isReadSuspended() {
+        return isReadSuspended;
+    }
+
+    private void suspendReading() {
+        log.trace("Suspend reading");
+        isReadSuspended = true;
+        channel.disableInterest(SelectionKey.OP_READ);
+    }
+
+    // Called by a stream command which has taken a fragment from its full buffer.
+    void resumeReading() {
+        getBelongingTo().addEvent(() -> {
+            if (!isReadSuspended) {
+                return;
+            }
+            log.trace("Resume reading");
+            isReadSuspended = false;
+            try {
+                channel.enableInterest(SelectionKey.OP_READ);
+                // Frames left in the content buffer and the channel never make the selector fire again
+                onReadable();
+            } catch (Exception e) {
+                log.warn("Failed to resume reading.", e);
+                close();
+            }
+        });
+    }
+
+    void receiveObject(String commandId, Integer callId, Object body, TraceSpan span) {
+        numOfReceivedMessages.incrementAndGet();
+        lastReadTime = System.currentTimeMillis();
+        CommandRequest request = new CommandRequest(commandId, callId, body, this);
+        if (span == null && tracer != null) {
+            span = TraceSpan.root();
+        }
+        if (span != null) {
+            request.setSpan(span, request.getReceivedNanos());
+        }
+        worker.addRequest(request);
+    }
+
+    // Replies (e.g. sync results) belong to the span of their requests.
+    void sendCommand(String id, Object body, TraceSpan span) {
+        writeFrame(Frame.of(codec, id, null, body, span));
+    }
+
+    private void writeCommandRequest(String commandId, Integer callId, Object body) {
+        writeFrame(Frame.of(codec, commandId, callId, body, newSpan(commandId)));
+    }
+
+    // Commands sent while handling a traced request become its children. Internal commands are not traced.
+    private TraceSpan newSpan(String commandId) {
+        if (tracer == null || commandId.startsWith("__")) {
+            return null;
         }
+        TraceSpan parent = TraceSpan.current();
+        return parent == null ? TraceSpan.root() : parent.child();
     }
 }
@@ -0,0 +1,42 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Tracks connections accepted by a server. Every path which closes a connection (close by peer,
+// processing errors and heartbeat timeouts) goes through Connection.close, which fires onDisconnected.
+class ConnectionRegistry implements CommandListener {
+    private final ConcurrentMap<Integer, Connection> connections;
+
+    ConnectionRegistry() {
+        this.connections = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void onConnected(Connection connection) {
+        connections.put(connection.getConnectionId(), connection);
+    }
+
+    @Override
+    public void onDisconnected(Connection connection) {
+        connections.remove(connection.getConnectionId(), connection);
+    }
+
+    Connection get(int connectionId) {
+        return connections.get(connectionId);
+    }
+
+    Collection<Connection> getConnections() {
+        return Collections.unmodifiableCollection(connections.values());
+    }
+
+    int size() {
+        return connections.size();
+    }
+
+    void clear() {
+        connections.clear();
+    }
+}
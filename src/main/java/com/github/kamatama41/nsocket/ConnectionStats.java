@@ -0,0 +1,128 @@
+package com.github.kamatama41.nsocket;
+
+import java.beans.ConstructorProperties;
+import java.util.Comparator;
+import java.util.function.ToLongFunction;
+
+// A snapshot of the traffic of a connection. Bytes are counted as they are read from and written to the channel,
+// so they are plaintext bytes for TLS, and 0 for loopback connections which skip serialization.
+public class ConnectionStats {
+    private final int connectionId;
+    private final String remoteAddress;
+    private final long numOfReceivedMessages;
+    private final long receivedBytes;
+    private final long numOfSentMessages;
+    private final long sentBytes;
+    private final long writeQueueBytes;
+    private final int contentBufferCapacity;
+    private final int channelBufferCapacity;
+    private final long lastReadTime;
+    private final long lastWriteTime;
+    private final int numOfInFlightSyncRequests;
+
+    @ConstructorProperties({"connectionId", "remoteAddress", "numOfReceivedMessages", "receivedBytes",
+            "numOfSentMessages", "sentBytes", "writeQueueBytes", "contentBufferCapacity",
+            "channelBufferCapacity", "lastReadTime", "lastWriteTime", "numOfInFlightSyncRequests"})
+    public ConnectionStats(int connectionId, String remoteAddress, long numOfReceivedMessages, long receivedBytes,
+                           long numOfSentMessages, long sentBytes, long writeQueueBytes, int contentBufferCapacity,
+                           int channelBufferCapacity, long lastReadTime, long lastWriteTime, int numOfInFlightSyncRequests) {
+        this.connectionId = connectionId;
+        this.remoteAddress = remoteAddress;
+        this.numOfReceivedMessages = numOfReceivedMessages;
+        this.receivedBytes = receivedBytes;
+        this.numOfSentMessages = numOfSentMessages;
+        this.sentBytes = sentBytes;
+        this.writeQueueBytes = writeQueueBytes;
+        this.contentBufferCapacity = contentBufferCapacity;
+        this.channelBufferCapacity = channelBufferCapacity;
+        this.lastReadTime = lastReadTime;
+        this.lastWriteTime = lastWriteTime;
+        this.numOfInFlightSyncRequests = numOfInFlightSyncRequests;
+    }
+
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // Frames including stream fragments and files
+    public long getNumOfReceivedMessages() {
+        return numOfReceivedMessages;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    public long getNumOfSentMessages() {
+        return numOfSentMessages;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    // Bytes of frames waiting in the write queue, files are not included
+    public long getWriteQueueBytes() {
+        return writeQueueBytes;
+    }
+
+    // 0 while nothing is buffered, since idle connections return the buffer to the pool
+    public int getContentBufferCapacity() {
+        return contentBufferCapacity;
+    }
+
+    // Buffers of TLS records, which are also returned to the pool while nothing is buffered
+    public int getChannelBufferCapacity() {
+        return channelBufferCapacity;
+    }
+
+    // Epoch millis, or 0 if nothing has been read
+    public long getLastReadTime() {
+        return lastReadTime;
+    }
+
+    // Epoch millis, or 0 if nothing has been written
+    public long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
+    public int getNumOfInFlightSyncRequests() {
+        return numOfInFlightSyncRequests;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConnectionStats{id=%d, remote=%s, received=%d/%dB, sent=%d/%dB, writeQueue=%dB, contentBuffer=%dB, channelBuffer=%dB, inFlightSync=%d}",
+                connectionId, remoteAddress, numOfReceivedMessages, receivedBytes, numOfSentMessages, sentBytes,
+                writeQueueBytes, contentBufferCapacity, channelBufferCapacity, numOfInFlightSyncRequests);
+    }
+
+    // Stats which connections can be sorted by, e.g. to find the ones responsible for most load or memory.
+    public enum Stat {
+        RECEIVED_MESSAGES(ConnectionStats::getNumOfReceivedMessages),
+        RECEIVED_BYTES(ConnectionStats::getReceivedBytes),
+        SENT_MESSAGES(ConnectionStats::getNumOfSentMessages),
+        SENT_BYTES(ConnectionStats::getSentBytes),
+        WRITE_QUEUE_BYTES(ConnectionStats::getWriteQueueBytes),
+        CONTENT_BUFFER_CAPACITY(ConnectionStats::getContentBufferCapacity),
+        CHANNEL_BUFFER_CAPACITY(ConnectionStats::getChannelBufferCapacity),
+        LAST_READ_TIME(ConnectionStats::getLastReadTime),
+        LAST_WRITE_TIME(ConnectionStats::getLastWriteTime),
+        IN_FLIGHT_SYNC_REQUESTS(ConnectionStats::getNumOfInFlightSyncRequests);
+
+        private final ToLongFunction<ConnectionStats> getter;
+
+        Stat(ToLongFunction<ConnectionStats> getter) {
+            this.getter = getter;
+        }
+
+        // Largest first
+        public Comparator<ConnectionStats> descending() {
+            return Comparator.comparingLong(getter).reversed();
+        }
+    }
+}
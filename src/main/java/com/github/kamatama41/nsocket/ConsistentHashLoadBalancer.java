@@ -0,0 +1,78 @@
+package com.github.kamatama41.nsocket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// The ring holds every node which has been passed once, keyed by its address, so it's never rebuilt when
+// nodes become unavailable and come back. A key of an unavailable node goes to the next available one clockwise.
+class ConsistentHashLoadBalancer implements LoadBalancer {
+    private static final int NUM_OF_VIRTUAL_NODES = 160;
+    private final ConcurrentSkipListMap<Long, String> circle;
+    private final Set<String> addresses;
+
+    ConsistentHashLoadBalancer() {
+        this.circle = new ConcurrentSkipListMap<>();
+        this.addresses = ConcurrentHashMap.newKeySet();
+    }
+
+    @Override
+    public Node select(List<Node> nodes, String routingKey) {
+        if (routingKey == null) {
+            throw new IllegalArgumentException("Routing key is required for consistent hashing.");
+        }
+        Map<String, Node> available = new HashMap<>();
+        for (Node node : nodes) {
+            String address = node.getAddress().toString();
+            available.put(address, node);
+            if (!addresses.contains(address)) {
+                add(address);
+            }
+        }
+        long hash = hash(routingKey);
+        Node selected = find(circle.tailMap(hash).values(), available);
+        if (selected == null) {
+            selected = find(circle.headMap(hash).values(), available);
+        }
+        return selected;
+    }
+
+    private synchronized void add(String address) {
+        if (addresses.contains(address)) {
+            return;
+        }
+        for (int i = 0; i < NUM_OF_VIRTUAL_NODES; i++) {
+            circle.put(hash(address + "#" + i), address);
+        }
+        addresses.add(address);
+    }
+
+    private static Node find(Iterable<String> addresses, Map<String, Node> available) {
+        for (String address : addresses) {
+            Node node = available.get(address);
+            if (node != null) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private static long hash(String key) {
+        // FNV-1a followed by the MurmurHash3 finalizer to spread similar keys
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
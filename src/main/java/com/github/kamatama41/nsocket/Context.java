@@ -1,15 +1,34 @@
 package com.github.kamatama41.nsocket;
 
+import com.github.kamatama41.nsocket.codec.Compressor;
 import com.github.kamatama41.nsocket.codec.ObjectCodec;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
 class Context {
     private CommandRegistry commandRegistry;
     private CommandListenerRegistry listenerRegistry;
     private ObjectCodec codec;
     private SyncManager syncManager;
     private String name;
-    private int defaultContentBufferSize;
-    private int heartbeatIntervalSeconds;
+    // Tunables below can be changed while running (e.g. via JMX), so they are volatile
+    private volatile int defaultContentBufferSize;
+    private volatile int heartbeatIntervalSeconds;
+    private volatile long writeQueueHighWaterMark;
+    private boolean loopbackSerializationSkipped;
+    private int numOfHandshakeThreads;
+    private int compressionThresholdBytes;
+    private int maxDecompressedBytes;
+    private volatile int streamFragmentSize;
+    private volatile int maxBufferedStreamFragments;
+    private final List<Compressor> compressors;
+    private final AtomicLong numOfContentBufferExpansions;
+    private final StallDetector stallDetector;
+    private Metrics metrics;
+    // Null unless tracing is enabled
+    private TraceInterceptor traceInterceptor;
     private SslContext sslContext;
 
     private Context(String defaultName, boolean isServer) {
@@ -20,6 +39,18 @@ class Context {
         this.name = defaultName;
         this.defaultContentBufferSize = 8 * 1024;
         this.heartbeatIntervalSeconds = 10;
+        this.writeQueueHighWaterMark = 16 * 1024 * 1024;
+        this.loopbackSerializationSkipped = false;
+        this.numOfHandshakeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        this.compressionThresholdBytes = -1;
+        this.maxDecompressedBytes = 64 * 1024 * 1024;
+        this.streamFragmentSize = 64 * 1024;
+        this.maxBufferedStreamFragments = 16;
+        this.compressors = new CopyOnWriteArrayList<>();
+        this.compressors.add(Compressor.DEFLATE);
+        this.numOfContentBufferExpansions = new AtomicLong(0L);
+        this.stallDetector = new StallDetector();
+        this.metrics = Metrics.noop();
         this.sslContext = new SslContext(isServer);
     }
 
@@ -63,7 +94,11 @@ class Context {
         return defaultContentBufferSize;
     }
 
+    // Applied to connections opened after this
     void setDefaultContentBufferSize(int defaultContentBufferSize) {
+        if (defaultContentBufferSize <= 0) {
+            throw new IllegalArgumentException("defaultContentBufferSize must be positive.");
+        }
         this.defaultContentBufferSize = defaultContentBufferSize;
     }
 
@@ -72,9 +107,140 @@ class Context {
     }
 
     void setHeartbeatIntervalSeconds(int heartbeatIntervalSeconds) {
+        if (heartbeatIntervalSeconds <= 0) {
+            throw new IllegalArgumentException("heartbeatIntervalSeconds must be positive.");
+        }
         this.heartbeatIntervalSeconds = heartbeatIntervalSeconds;
     }
 
+    long getWriteQueueHighWaterMark() {
+        return writeQueueHighWaterMark;
+    }
+
+    void setWriteQueueHighWaterMark(long writeQueueHighWaterMark) {
+        this.writeQueueHighWaterMark = writeQueueHighWaterMark;
+    }
+
+    boolean isLoopbackSerializationSkipped() {
+        return loopbackSerializationSkipped;
+    }
+
+    void setLoopbackSerializationSkipped(boolean loopbackSerializationSkipped) {
+        this.loopbackSerializationSkipped = loopbackSerializationSkipped;
+    }
+
+    int getNumOfHandshakeThreads() {
+        return numOfHandshakeThreads;
+    }
+
+    void setNumOfHandshakeThreads(int numOfHandshakeThreads) {
+        this.numOfHandshakeThreads = numOfHandshakeThreads;
+    }
+
+    int getCompressionThresholdBytes() {
+        return compressionThresholdBytes;
+    }
+
+    void setCompressionThresholdBytes(int compressionThresholdBytes) {
+        this.compressionThresholdBytes = compressionThresholdBytes;
+    }
+
+    int getMaxDecompressedBytes() {
+        return maxDecompressedBytes;
+    }
+
+    void setMaxDecompressedBytes(int maxDecompressedBytes) {
+        if (maxDecompressedBytes <= 0) {
+            throw new IllegalArgumentException("maxDecompressedBytes must be positive.");
+        }
+        this.maxDecompressedBytes = maxDecompressedBytes;
+    }
+
+    boolean isCompressionEnabled() {
+        return compressionThresholdBytes >= 0;
+    }
+
+    // Compressors registered later are preferred. One with the same name as a registered one replaces it.
+    synchronized void registerCompressor(Compressor compressor) {
+        compressors.removeIf(registered -> registered.getName().equals(compressor.getName()));
+        compressors.add(0, compressor);
+    }
+
+    Compressor getCompressor(String name) {
+        for (Compressor compressor : compressors) {
+            if (compressor.getName().equals(name)) {
+                return compressor;
+            }
+        }
+        return null;
+    }
+
+    String[] getCompressorNames() {
+        return compressors.stream().map(Compressor::getName).toArray(String[]::new);
+    }
+
+    // Returns the most preferred compressor which the peer is able to decompress, or null if nothing.
+    Compressor selectCompressor(String[] offeredNames) {
+        for (Compressor compressor : compressors) {
+            for (String name : offeredNames) {
+                if (compressor.getName().equals(name)) {
+                    return compressor;
+                }
+            }
+        }
+        return null;
+    }
+
+    int getStreamFragmentSize() {
+        return streamFragmentSize;
+    }
+
+    void setStreamFragmentSize(int streamFragmentSize) {
+        if (streamFragmentSize <= 0) {
+            throw new IllegalArgumentException("streamFragmentSize must be positive.");
+        }
+        this.streamFragmentSize = streamFragmentSize;
+    }
+
+    int getMaxBufferedStreamFragments() {
+        return maxBufferedStreamFragments;
+    }
+
+    void setMaxBufferedStreamFragments(int maxBufferedStreamFragments) {
+        if (maxBufferedStreamFragments <= 0) {
+            throw new IllegalArgumentException("maxBufferedStreamFragments must be positive.");
+        }
+        this.maxBufferedStreamFragments = maxBufferedStreamFragments;
+    }
+
+    void recordContentBufferExpansion() {
+        numOfContentBufferExpansions.incrementAndGet();
+    }
+
+    long getNumOfContentBufferExpansions() {
+        return numOfContentBufferExpansions.get();
+    }
+
+    StallDetector getStallDetector() {
+        return stallDetector;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    TraceInterceptor getTraceInterceptor() {
+        return traceInterceptor;
+    }
+
+    void setTraceInterceptor(TraceInterceptor traceInterceptor) {
+        this.traceInterceptor = traceInterceptor;
+    }
+
     SslContext getSslContext() {
         return sslContext;
     }
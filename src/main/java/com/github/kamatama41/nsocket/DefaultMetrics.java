@@ -0,0 +1,119 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+// Keeps measurements in memory. Recording doesn't allocate except for the first time of each command ID.
+public class DefaultMetrics implements Metrics {
+    private final ConcurrentMap<String, CommandStats> commandStats;
+    private final ConcurrentMap<String, LongSupplier> gauges;
+
+    public DefaultMetrics() {
+        this.commandStats = new ConcurrentHashMap<>();
+        this.gauges = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void recordReceived(String commandId, long bytes) {
+        CommandStats stats = statsOf(commandId);
+        stats.numOfReceived.incrementAndGet();
+        stats.receivedBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void recordSent(String commandId, long bytes) {
+        CommandStats stats = statsOf(commandId);
+        stats.numOfSent.incrementAndGet();
+        stats.sentBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void recordLatency(String commandId, Stage stage, long nanos) {
+        statsOf(commandId).latencies[stage.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    // Returns null if nothing has been recorded for the command.
+    public CommandStats getCommandStats(String commandId) {
+        return commandStats.get(commandId);
+    }
+
+    public Map<String, CommandStats> getCommandStats() {
+        return Collections.unmodifiableMap(new TreeMap<>(commandStats));
+    }
+
+    // Samples all gauges, sorted by their names.
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    private CommandStats statsOf(String commandId) {
+        CommandStats stats = commandStats.get(commandId);
+        if (stats == null) {
+            stats = commandStats.computeIfAbsent(commandId, id -> new CommandStats());
+        }
+        return stats;
+    }
+
+    public static class CommandStats {
+        private final AtomicLong numOfReceived;
+        private final AtomicLong receivedBytes;
+        private final AtomicLong numOfSent;
+        private final AtomicLong sentBytes;
+        private final Histogram[] latencies;
+
+        CommandStats() {
+            this.numOfReceived = new AtomicLong(0L);
+            this.receivedBytes = new AtomicLong(0L);
+            this.numOfSent = new AtomicLong(0L);
+            this.sentBytes = new AtomicLong(0L);
+            this.latencies = new Histogram[Stage.values().length];
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new Histogram();
+            }
+        }
+
+        public long getNumOfReceived() {
+            return numOfReceived.get();
+        }
+
+        public long getReceivedBytes() {
+            return receivedBytes.get();
+        }
+
+        public long getNumOfSent() {
+            return numOfSent.get();
+        }
+
+        public long getSentBytes() {
+            return sentBytes.get();
+        }
+
+        // Nanoseconds spent in the stage
+        public Histogram getLatency(Stage stage) {
+            return latencies[stage.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format(
+                    "CommandStats{received=%d (%d bytes), sent=%d (%d bytes)",
+                    getNumOfReceived(), getReceivedBytes(), getNumOfSent(), getSentBytes()));
+            for (Stage stage : Stage.values()) {
+                sb.append(", ").append(stage).append('=').append(getLatency(stage));
+            }
+            return sb.append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.kamatama41.nsocket;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+// A command which receives a file sent by Connection#sendFile.
+// The content is written to the channel opened by this command as it arrives, without being decoded.
+public interface FileCommand extends CommandId {
+    // Runs on the I/O loop when the header of a file arrives, so it should not block.
+    // Returning null discards the content.
+    FileChannel open(String name, long size, Connection connection) throws IOException;
+
+    // Runs on its own thread after the whole content is written and the channel is closed.
+    void execute(String name, long size, Connection connection) throws Exception;
+}
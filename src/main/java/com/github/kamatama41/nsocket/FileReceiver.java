@@ -0,0 +1,79 @@
+package com.github.kamatama41.nsocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Writes the content of a file which follows its header frame, on the thread of the belonging loop.
+class FileReceiver {
+    private static final Logger log = LoggerFactory.getLogger(FileReceiver.class);
+    private final FileCommand command;
+    private final String name;
+    private final long size;
+    private FileChannel target;
+    private long remaining;
+    private IOException error;
+
+    FileReceiver(FileCommand command, String name, long size, FileChannel target) {
+        this.command = command;
+        this.name = name;
+        this.size = size;
+        this.target = target;
+        this.remaining = size;
+    }
+
+    FileCommand getCommand() {
+        return command;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    // Non-null if the target failed to write, then the rest of the content is discarded.
+    IOException getError() {
+        return error;
+    }
+
+    // Returns true once the whole content is received.
+    boolean receive(ByteBuffer src) {
+        int length = (int) Math.min(src.remaining(), remaining);
+        int limit = src.limit();
+        src.limit(src.position() + length);
+        try {
+            while (target != null && src.hasRemaining()) {
+                target.write(src);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to write a file '{}'. The rest of it is discarded.", name, e);
+            error = e;
+            release();
+        } finally {
+            src.position(src.limit());
+            src.limit(limit);
+        }
+        remaining -= length;
+        return remaining == 0;
+    }
+
+    void release() {
+        if (target == null) {
+            return;
+        }
+        try {
+            target.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+        target = null;
+    }
+}
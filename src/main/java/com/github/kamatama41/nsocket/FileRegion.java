@@ -0,0 +1,61 @@
+package com.github.kamatama41.nsocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// A file in the write queue, which is written right after its header frame.
+class FileRegion {
+    private final ByteBuffer header;
+    private final FileChannel file;
+    private final long end;
+    private final long size;
+    private final boolean isOwned;
+    private long position;
+
+    FileRegion(ByteBuffer header, FileChannel file, long position, long count, boolean isOwned) {
+        this.header = header;
+        this.file = file;
+        this.position = position;
+        this.end = position + count;
+        this.size = header.remaining() + count;
+        this.isOwned = isOwned;
+    }
+
+    // Bytes of the header and the content
+    long size() {
+        return size;
+    }
+
+    // Returns false if the channel could not take everything this time.
+    boolean transferTo(TcpChannel channel) throws IOException {
+        if (header.hasRemaining()) {
+            channel.write(header);
+            if (header.hasRemaining()) {
+                return false;
+            }
+        }
+        while (position < end) {
+            long transferred = channel.transferFrom(file, position, end - position);
+            if (transferred <= 0) {
+                if (file.size() < end) {
+                    throw new EOFException(String.format("File was truncated to %d bytes while sending.", file.size()));
+                }
+                return false;
+            }
+            position += transferred;
+        }
+        return true;
+    }
+
+    // Files opened by the library are closed, those of users are left open.
+    void release() {
+        if (isOwned) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
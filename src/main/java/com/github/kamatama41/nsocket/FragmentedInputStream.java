@@ -0,0 +1,140 @@
+package com.github.kamatama41.nsocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+// An input stream of fragments, which are offered by the I/O loop and taken by a stream command.
+// Once it buffers the max number of fragments, the connection stops reading until the command catches up.
+class FragmentedInputStream extends InputStream {
+    private final String commandId;
+    private final Connection connection;
+    private final int maxBufferedFragments;
+    private final Queue<byte[]> fragments;
+    private byte[] current;
+    private int offset;
+    private boolean isFull;
+    private boolean isEnded;
+    private boolean isClosed;
+    private IOException error;
+
+    FragmentedInputStream(String commandId, Connection connection, int maxBufferedFragments) {
+        this.commandId = commandId;
+        this.connection = connection;
+        this.maxBufferedFragments = maxBufferedFragments;
+        this.fragments = new ArrayDeque<>();
+    }
+
+    String getCommandId() {
+        return commandId;
+    }
+
+    // Returns false if the buffer got full, then the caller must stop reading.
+    synchronized boolean offer(byte[] fragment) {
+        if (isClosed) {
+            return true;
+        }
+        if (fragment.length > 0) {
+            fragments.add(fragment);
+            notifyAll();
+        }
+        isFull = fragments.size() >= maxBufferedFragments;
+        return !isFull;
+    }
+
+    synchronized void end() {
+        isEnded = true;
+        notifyAll();
+    }
+
+    synchronized void fail(IOException error) {
+        if (!isEnded) {
+            this.error = error;
+            isEnded = true;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[offset++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int read = Math.min(len, current.length - offset);
+        System.arraycopy(current, offset, b, off, read);
+        offset += read;
+        return read;
+    }
+
+    @Override
+    public synchronized int available() {
+        return current == null ? 0 : current.length - offset;
+    }
+
+    @Override
+    public void close() {
+        boolean wasFull;
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            wasFull = isFull;
+            isFull = false;
+            fragments.clear();
+            current = null;
+        }
+        if (wasFull) {
+            connection.resumeReading();
+        }
+    }
+
+    // Returns false at the end of the stream.
+    private boolean fill() throws IOException {
+        boolean wasFull;
+        synchronized (this) {
+            if (isClosed) {
+                throw new IOException("Stream closed.");
+            }
+            if (current != null && offset < current.length) {
+                return true;
+            }
+            current = null;
+            while (fragments.isEmpty()) {
+                if (error != null) {
+                    throw error;
+                }
+                if (isEnded) {
+                    return false;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a fragment.");
+                }
+            }
+            current = fragments.poll();
+            offset = 0;
+            wasFull = isFull;
+            isFull = false;
+        }
+        if (wasFull) {
+            connection.resumeReading();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,254 @@
+package com.github.kamatama41.nsocket;
+
+import com.github.kamatama41.nsocket.codec.Compressor;
+import com.github.kamatama41.nsocket.codec.ObjectCodec;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// A command request which can be written to many connections without encoding it again.
+// It is encoded lazily, so that channels which skip serialization never pay for it.
+class Frame {
+    // A plain frame is a msgpack str, a compressed one is a msgpack ext of this type
+    // whose payload is (compressor name: str, original length: int, compressed message: bin).
+    static final byte COMPRESSED_EXT_TYPE = 1;
+    // A fragment of a stream is a msgpack ext of this type whose payload is
+    // (stream ID: int, command ID: str only in the first fragment or nil, flags: int, data: bin).
+    static final byte STREAM_FRAGMENT_EXT_TYPE = 2;
+    static final int FRAGMENT_LAST = 1;
+    static final int FRAGMENT_ABORTED = 1 << 1;
+    // A header of a file is a msgpack ext of this type whose payload is
+    // (command ID: str, name: str or nil, size: long), and the raw content of the file follows it.
+    static final byte FILE_HEADER_EXT_TYPE = 3;
+    // A header of a traced frame is a msgpack ext of this type whose payload is
+    // (trace ID: long, span ID: long, parent span ID: long), and the frame follows it.
+    static final byte TRACE_HEADER_EXT_TYPE = 4;
+    private final ObjectCodec codec;
+    private final String commandId;
+    private final Integer callId;
+    private final Object body;
+    private final TraceSpan span;
+    private volatile byte[] message;
+    private volatile ByteBuffer buffer;
+    private volatile Compressed compressed;
+
+    private Frame(ObjectCodec codec, String commandId, Integer callId, Object body, TraceSpan span) {
+        this.codec = codec;
+        this.commandId = commandId;
+        this.callId = callId;
+        this.body = body;
+        this.span = span;
+    }
+
+    static Frame of(ObjectCodec codec, String commandId, Integer callId, Object body) {
+        return new Frame(codec, commandId, callId, body, null);
+    }
+
+    static Frame of(ObjectCodec codec, String commandId, Integer callId, Object body, TraceSpan span) {
+        return new Frame(codec, commandId, callId, body, span);
+    }
+
+    String getCommandId() {
+        return commandId;
+    }
+
+    Integer getCallId() {
+        return callId;
+    }
+
+    Object getBody() {
+        return body;
+    }
+
+    // Null if the frame is not traced
+    TraceSpan getSpan() {
+        return span;
+    }
+
+    // Each write queue needs its own position, so the content is shared via a duplicated view.
+    ByteBuffer newBuffer() {
+        ByteBuffer encoded = buffer;
+        if (encoded == null) {
+            synchronized (this) {
+                if (buffer == null) {
+                    buffer = pack(message());
+                }
+                encoded = buffer;
+            }
+        }
+        return encoded.duplicate();
+    }
+
+    // Returns the compressed frame if the message is larger than the threshold and compression pays off.
+    // A negative threshold or null compressor means a plain frame.
+    ByteBuffer newBuffer(Compressor compressor, int thresholdBytes) {
+        if (compressor == null || thresholdBytes < 0) {
+            return newBuffer();
+        }
+        byte[] encoded = message();
+        if (encoded.length <= thresholdBytes) {
+            return newBuffer();
+        }
+        // Connections rarely negotiate different compressors, so only the last result is kept.
+        // Racing writers may compress twice, which is harmless.
+        Compressed current = compressed;
+        if (current == null || current.compressor != compressor) {
+            current = new Compressed(compressor, compress(compressor, encoded));
+            compressed = current;
+        }
+        return current.buffer == null ? newBuffer() : current.buffer.duplicate();
+    }
+
+    static String decompress(byte[] payload, Context context) throws IOException {
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(payload)) {
+            String name = unpacker.unpackString();
+            int originalLength = unpacker.unpackInt();
+            // The length comes from the peer, so it is checked before a buffer of that size is allocated
+            if (originalLength < 0 || originalLength > context.getMaxDecompressedBytes()) {
+                throw new IOException(String.format("Decompressed length %d is out of the range (max: %d).",
+                        originalLength, context.getMaxDecompressedBytes()));
+            }
+            byte[] data = unpacker.readPayload(unpacker.unpackBinaryHeader());
+            Compressor compressor = context.getCompressor(name);
+            if (compressor == null) {
+                throw new IOException(String.format("Compressor '%s' not found.", name));
+            }
+            return new String(compressor.decompress(data, originalLength), StandardCharsets.UTF_8);
+        }
+    }
+
+    static ByteBuffer streamFragment(int streamId, String commandId, int flags, ByteBuffer data) {
+        try (MessageBufferPacker payload = MessagePack.newDefaultBufferPacker();
+             MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            payload.packInt(streamId);
+            if (commandId == null) {
+                payload.packNil();
+            } else {
+                payload.packString(commandId);
+            }
+            payload.packInt(flags);
+            payload.packBinaryHeader(data.remaining());
+            payload.writePayload(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            byte[] ext = payload.toByteArray();
+            packer.packExtensionTypeHeader(STREAM_FRAGMENT_EXT_TYPE, ext.length);
+            packer.writePayload(ext);
+            return ByteBuffer.wrap(packer.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static ByteBuffer fileHeader(String commandId, String name, long size) {
+        try (MessageBufferPacker payload = MessagePack.newDefaultBufferPacker();
+             MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            payload.packString(commandId);
+            if (name == null) {
+                payload.packNil();
+            } else {
+                payload.packString(name);
+            }
+            payload.packLong(size);
+            byte[] ext = payload.toByteArray();
+            packer.packExtensionTypeHeader(FILE_HEADER_EXT_TYPE, ext.length);
+            packer.writePayload(ext);
+            return ByteBuffer.wrap(packer.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The header and the frame are put together, so that no other frame can get in between them in a write queue.
+    static ByteBuffer withTraceHeader(TraceSpan span, ByteBuffer frame) {
+        try (MessageBufferPacker payload = MessagePack.newDefaultBufferPacker();
+             MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            payload.packLong(span.getTraceId());
+            payload.packLong(span.getSpanId());
+            payload.packLong(span.getParentSpanId());
+            byte[] ext = payload.toByteArray();
+            packer.packExtensionTypeHeader(TRACE_HEADER_EXT_TYPE, ext.length);
+            packer.writePayload(ext);
+            byte[] header = packer.toByteArray();
+            ByteBuffer buffer = ByteBuffer.allocate(header.length + frame.remaining());
+            buffer.put(header).put(frame);
+            buffer.flip();
+            return buffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static TraceSpan readTraceHeader(MessageUnpacker unpacker) throws IOException {
+        long traceId = unpacker.unpackLong();
+        long spanId = unpacker.unpackLong();
+        long parentSpanId = unpacker.unpackLong();
+        return new TraceSpan(traceId, spanId, parentSpanId);
+    }
+
+    private byte[] message() {
+        byte[] encoded = message;
+        if (encoded == null) {
+            synchronized (this) {
+                if (message == null) {
+                    message = encode();
+                }
+                encoded = message;
+            }
+        }
+        return encoded;
+    }
+
+    private byte[] encode() {
+        try {
+            String encoded = RequestMessageCodec.encode(commandId, callId, codec.encodeToJson(body));
+            return encoded.getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ByteBuffer pack(byte[] message) {
+        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            packer.packRawStringHeader(message.length);
+            packer.writePayload(message);
+            return ByteBuffer.wrap(packer.toByteArray()).asReadOnlyBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Returns null if the compressed message is not smaller than the original.
+    private static ByteBuffer compress(Compressor compressor, byte[] message) {
+        try (MessageBufferPacker payload = MessagePack.newDefaultBufferPacker();
+             MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            byte[] data = compressor.compress(message);
+            if (data.length >= message.length) {
+                return null;
+            }
+            payload.packString(compressor.getName());
+            payload.packInt(message.length);
+            payload.packBinaryHeader(data.length);
+            payload.writePayload(data);
+            byte[] ext = payload.toByteArray();
+            packer.packExtensionTypeHeader(COMPRESSED_EXT_TYPE, ext.length);
+            packer.writePayload(ext);
+            return ByteBuffer.wrap(packer.toByteArray()).asReadOnlyBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class Compressed {
+        private final Compressor compressor;
+        private final ByteBuffer buffer;
+
+        Compressed(Compressor compressor, ByteBuffer buffer) {
+            this.compressor = compressor;
+            this.buffer = buffer;
+        }
+    }
+}
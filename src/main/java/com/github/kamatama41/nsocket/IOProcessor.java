@@ -4,26 +4,41 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 class IOProcessor {
     private static final Logger log = LoggerFactory.getLogger(IOProcessor.class);
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final long SLOW_CONSUMER_CHECK_INTERVAL_MILLIS = 1000L;
     private final Loop[] processors;
     private final Context context;
     private boolean isRunning;
     private final AtomicInteger counter = new AtomicInteger(0);
+    private ExecutorService handshakeExecutor;
 
     static IOProcessor server(int numOfProcessors, Context context) {
         return new IOProcessor(numOfProcessors, context);
     }
 
-    static IOProcessor client(Context context) {
-        return new IOProcessor(1, context);
+    static IOProcessor client(int numOfProcessors, Context context) {
+        return new IOProcessor(numOfProcessors, context);
     }
 
     private IOProcessor(int numOfProcessors, Context context) {
@@ -37,6 +52,7 @@ class IOProcessor {
             return;
         }
         isRunning = true;
+        handshakeExecutor = newHandshakeExecutor();
         for (int i = 0; i < processors.length; i++) {
             Loop processor = new Loop();
             processor.setName(context.getName() + "-processor-" + i);
@@ -61,20 +77,93 @@ class IOProcessor {
                 log.warn("Shutting down a processor thread interrupted.", e);
             }
         }
+        handshakeExecutor.shutdownNow();
     }
 
     Loop selectProcessor() {
-        // TODO: More smart selection logic (e.g. most least connections)
-        // Round robin
-        return processors[counter.getAndAdd(1) % processors.length];
+        // Least connections, ties are broken by round robin
+        int start = Math.abs(counter.getAndAdd(1) % processors.length);
+        Loop selected = processors[start];
+        for (int i = 1; i < processors.length; i++) {
+            Loop processor = processors[(start + i) % processors.length];
+            if (processor.getNumOfConnections() < selected.getNumOfConnections()) {
+                selected = processor;
+            }
+        }
+        selected.numOfConnections.incrementAndGet();
+        return selected;
+    }
+
+    List<Loop> getProcessors() {
+        return Arrays.asList(processors);
+    }
+
+    void registerGauges() {
+        Metrics metrics = context.getMetrics();
+        for (Loop processor : processors) {
+            metrics.registerGauge(processor.getName() + ".connections", processor::getNumOfConnections);
+            metrics.registerGauge(processor.getName() + ".events", processor::getNumOfPendingEvents);
+        }
+    }
+
+    List<ProcessorStats> getProcessorStats() {
+        List<ProcessorStats> stats = new ArrayList<>(processors.length);
+        for (Loop processor : processors) {
+            if (processor != null) {
+                stats.add(processor.getStats());
+            }
+        }
+        return stats;
+    }
+
+    Map<String, Integer> getNumOfConnectionsPerProcessor() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (Loop processor : processors) {
+            if (processor != null) {
+                counts.put(processor.getName(), processor.getNumOfConnections());
+            }
+        }
+        return counts;
+    }
+
+    // Threads time out when idle, so it costs nothing unless TLS is enabled.
+    // Delegated tasks never run on a loop, so the queue is unbounded. Servers limit it by limiting concurrent
+    // handshakes (setMaxConcurrentSslHandshakes), and tasks are rejected only once the executor is shut down.
+    private ExecutorService newHandshakeExecutor() {
+        int numOfThreads = context.getNumOfHandshakeThreads();
+        AtomicInteger threadCounter = new AtomicInteger(0);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                numOfThreads, numOfThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable);
+                    thread.setName(context.getName() + "-handshake-" + threadCounter.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     class Loop extends Thread {
         private Queue<Event> eventQueue;
+        private final AtomicInteger numOfConnections;
+        private final TopicShard topicShard;
+        private final Set<LoopbackTcpChannel> loopbackChannels;
+        private ByteBuffer transferBuffer;
+        private final BufferPool bufferPool;
+        // Written only by this thread, so they are volatile just to be read by others
+        private volatile long numOfSelects;
+        private volatile long numOfSelectedKeys;
+        private volatile long numOfProcessedEvents;
         Selector selector;
 
         Loop() throws IOException {
             this.eventQueue = new ConcurrentLinkedQueue<>();
+            this.numOfConnections = new AtomicInteger(0);
+            this.topicShard = new TopicShard();
+            this.loopbackChannels = ConcurrentHashMap.newKeySet();
+            this.bufferPool = new BufferPool();
             this.selector = Selector.open();
         }
 
@@ -87,16 +176,25 @@ class IOProcessor {
                     log.warn("An error occurred with closing a key.", e);
                 }
             }
+            for (LoopbackTcpChannel channel : loopbackChannels) {
+                channel.close();
+            }
             selector.wakeup();
         }
 
         @Override
         public void run() {
+            StallDetector stallDetector = context.getStallDetector();
             long lastHeartbeatTime = System.currentTimeMillis();
+            long lastStallCheckTime = lastHeartbeatTime;
             while (isRunning) {
                 try {
+                    long startNanos = System.nanoTime();
+                    int events = 0;
                     Event event;
                     while ((event = eventQueue.poll()) != null) {
+                        numOfProcessedEvents++;
+                        events++;
                         event.process();
                     }
                     final long now = System.currentTimeMillis();
@@ -104,7 +202,18 @@ class IOProcessor {
                         lastHeartbeatTime = now;
                         sendHeartbeat();
                     }
-                    select();
+                    if (now - lastStallCheckTime >= SLOW_CONSUMER_CHECK_INTERVAL_MILLIS) {
+                        lastStallCheckTime = now;
+                        checkSlowConsumers(stallDetector);
+                    }
+                    long selectStartNanos = System.nanoTime();
+                    int selected = selector.select(1000L);
+                    long selectEndNanos = System.nanoTime();
+                    if (selected > 0) {
+                        processSelectedKeys(selected);
+                    }
+                    long elapsedNanos = (selectStartNanos - startNanos) + (System.nanoTime() - selectEndNanos);
+                    stallDetector.onLoopIteration(getName(), elapsedNanos, events, selected, getNumOfConnections());
                 } catch (Exception e) {
                     log.warn("An error occurred on processor.", e);
                 }
@@ -115,17 +224,62 @@ class IOProcessor {
             return selector;
         }
 
+        int getNumOfConnections() {
+            return numOfConnections.get();
+        }
+
+        int getNumOfPendingEvents() {
+            return eventQueue.size();
+        }
+
+        ProcessorStats getStats() {
+            return new ProcessorStats(getName(), getNumOfConnections(), selector.keys().size(), getNumOfPendingEvents(),
+                    numOfSelects, numOfSelectedKeys, numOfProcessedEvents);
+        }
+
+        void releaseConnection() {
+            numOfConnections.decrementAndGet();
+        }
+
+        // Loopback channels are not registered to the selector, so they are tracked to be closed on shutdown
+        void addLoopbackChannel(LoopbackTcpChannel channel) {
+            loopbackChannels.add(channel);
+        }
+
+        void removeLoopbackChannel(LoopbackTcpChannel channel) {
+            loopbackChannels.remove(channel);
+        }
+
+        // A buffer shared by channels of this loop to copy files, so it must be used only on this thread.
+        ByteBuffer getTransferBuffer() {
+            if (transferBuffer == null) {
+                transferBuffer = ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+            }
+            return transferBuffer;
+        }
+
+        // Read buffers of channels of this loop, so it must be used only on this thread.
+        BufferPool getBufferPool() {
+            return bufferPool;
+        }
+
+        ExecutorService getHandshakeExecutor() {
+            return handshakeExecutor;
+        }
+
+        TopicShard getTopicShard() {
+            return topicShard;
+        }
+
         void addEvent(Event event) {
             log.trace("addEvent");
             eventQueue.add(event);
             selector.wakeup();
         }
 
-        private void select() throws IOException {
-            int select = selector.select(1000L);
-            if (select == 0) {
-                return;
-            }
+        private void processSelectedKeys(int selected) throws IOException {
+            numOfSelects++;
+            numOfSelectedKeys += selected;
 
             final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
 
@@ -165,6 +319,25 @@ class IOProcessor {
             }
         }
 
+        private void checkSlowConsumers(StallDetector stallDetector) {
+            if (!stallDetector.isSlowConsumerEnabled()) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && connection.isOpen()) {
+                    connection.checkSlowConsumer(stallDetector, now);
+                }
+            }
+            for (LoopbackTcpChannel channel : loopbackChannels) {
+                Connection connection = channel.getConnection();
+                if (connection != null && connection.isOpen()) {
+                    connection.checkSlowConsumer(stallDetector, now);
+                }
+            }
+        }
+
         private void sendHeartbeat() {
             for (SelectionKey key : selector.keys()) {
                 if (key.attachment() == null) {
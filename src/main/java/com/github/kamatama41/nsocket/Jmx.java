@@ -0,0 +1,54 @@
+package com.github.kamatama41.nsocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+// Registers MBeans to the platform MBean server as "com.github.kamatama41.nsocket:type=<type>,name=<name>".
+// Failures are only logged, since JMX is for diagnosis and must not prevent servers or clients from working.
+class Jmx {
+    private static final Logger log = LoggerFactory.getLogger(Jmx.class);
+    private static final String DOMAIN = "com.github.kamatama41.nsocket";
+
+    private Jmx() {
+    }
+
+    static ObjectName objectName(String type, String name) {
+        try {
+            return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // Returns the registered name, or null if it could not be registered.
+    static ObjectName register(Object mbean, String type, String name) {
+        ObjectName objectName = objectName(type, name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(mbean, objectName);
+            return objectName;
+        } catch (InstanceAlreadyExistsException e) {
+            log.warn("MBean {} is already registered, give it a unique name to expose it.", objectName);
+        } catch (JMException e) {
+            log.warn("Failed to register MBean {}.", objectName, e);
+        }
+        return null;
+    }
+
+    static void unregister(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("Failed to unregister MBean {}.", objectName, e);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.github.kamatama41.nsocket;
+
+// Power of two choices weighted by the latency EWMA, so that a slow node is avoided
+// even if it has few outstanding requests. Nodes without samples are preferred to warm them up.
+class LatencyEwmaLoadBalancer extends PowerOfTwoChoicesLoadBalancer {
+    @Override
+    double cost(Node node) {
+        return node.getLatencyEwmaNanos() * (node.getNumOfPendingRequests() + 1);
+    }
+}
@@ -0,0 +1,24 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.List;
+
+public interface LoadBalancer {
+    // nodes are never empty and contain only available nodes.
+    Node select(List<Node> nodes, String routingKey);
+
+    static LoadBalancer roundRobin() {
+        return new RoundRobinLoadBalancer();
+    }
+
+    static LoadBalancer powerOfTwoChoices() {
+        return new PowerOfTwoChoicesLoadBalancer();
+    }
+
+    static LoadBalancer latencyEwma() {
+        return new LatencyEwmaLoadBalancer();
+    }
+
+    static LoadBalancer consistentHash() {
+        return new ConsistentHashLoadBalancer();
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.kamatama41.nsocket;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An address of a SocketServer running in the same JVM. Connections to it bypass the network stack.
+class LoopbackAddress extends SocketAddress {
+    private static final long serialVersionUID = 1L;
+    private static final AtomicInteger ID_COUNTER = new AtomicInteger(0);
+    private final transient SocketServer server;
+    private final String name;
+    // Clients key nodes by the string of their address, so servers of the same name must differ
+    private final int id;
+
+    LoopbackAddress(SocketServer server, String name) {
+        this.server = server;
+        this.name = name;
+        this.id = ID_COUNTER.incrementAndGet();
+    }
+
+    SocketServer getServer() {
+        return server;
+    }
+
+    @Override
+    public String toString() {
+        return "loopback:" + name + "#" + id;
+    }
+}
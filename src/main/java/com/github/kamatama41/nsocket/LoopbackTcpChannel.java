@@ -0,0 +1,301 @@
+package com.github.kamatama41.nsocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A channel connected to a peer channel in the same JVM. Bytes are handed over through a lock-free queue
+// instead of a socket, and if serialization is skipped, command bodies are handed over as they are.
+// Loopback connections don't send heartbeats since the peer can never silently disappear.
+class LoopbackTcpChannel implements TcpChannel {
+    private static final Logger log = LoggerFactory.getLogger(LoopbackTcpChannel.class);
+    private static final int TRANSFER_SIZE = 64 * 1024;
+    // Bytes which the peer can write ahead of this side reading them, like the receive buffer of a socket.
+    // So a slow reader fills the write queue of the peer, where the high water mark applies.
+    private static final int MAX_INBOUND_BYTES = 256 * 1024;
+    private final IOProcessor.Loop belongingTo;
+    private final LoopbackAddress address;
+    private final Queue<ByteBuffer> inbound;
+    private final AtomicInteger numOfInboundBytes;
+    private final AtomicBoolean isOpen;
+    private final AtomicBoolean isReadScheduled;
+    private final AtomicBoolean isWriteScheduled;
+    private volatile LoopbackTcpChannel peer;
+    private volatile Connection connection;
+    private volatile boolean isSerializationSkipped;
+    // Set while a write waits for the peer to read, so that the peer resumes it
+    private volatile boolean isWriteBlocked;
+    // Set on the belonging loop once the peer has closed, then the connection closes after reading the rest
+    private boolean isPeerClosed;
+
+    LoopbackTcpChannel(IOProcessor.Loop belongingTo, LoopbackAddress address) {
+        this.belongingTo = belongingTo;
+        this.address = address;
+        this.inbound = new ConcurrentLinkedQueue<>();
+        this.numOfInboundBytes = new AtomicInteger(0);
+        this.isOpen = new AtomicBoolean(true);
+        this.isReadScheduled = new AtomicBoolean(false);
+        this.isWriteScheduled = new AtomicBoolean(false);
+        belongingTo.addLoopbackChannel(this);
+    }
+
+    // Creates the server side of a channel and links it to the client side
+    static LoopbackTcpChannel accept(IOProcessor.Loop belongingTo, LoopbackTcpChannel client, boolean isSerializationSkipped) {
+        LoopbackTcpChannel server = new LoopbackTcpChannel(belongingTo, client.address);
+        server.isSerializationSkipped = isSerializationSkipped;
+        server.peer = client;
+        client.isSerializationSkipped = isSerializationSkipped;
+        client.peer = server;
+        return server;
+    }
+
+    @Override
+    public void connect(SocketAddress remote, long timeoutSeconds, Connection connection) throws IOException {
+        this.connection = connection;
+        try {
+            address.getServer().acceptLoopback(this);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        try {
+            if (!connection.waitUntilConnected(timeoutSeconds)) {
+                close();
+                throw new IOException("Connection timed out");
+            }
+        } catch (InterruptedException e) {
+            close();
+            throw new IOException("Connecting to server failed by interruption");
+        }
+
+        if (!isOpen()) {
+            throw new IOException(String.format("Failed to connect server (%s)", remote));
+        }
+    }
+
+    @Override
+    public void finishConnect(Connection connection) {
+        // Never called, a loopback channel has no connect readiness
+    }
+
+    @Override
+    public void register(Connection connection) {
+        this.connection = connection;
+        belongingTo.addEvent(() -> {
+            log.trace("register");
+            connection.assignConnectionId();
+            connection.notifyConnected();
+            connection.sendCommand(SetConnectionIdCommand.ID, connection.getConnectionId());
+        });
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        int read = 0;
+        ByteBuffer src;
+        while (dst.hasRemaining() && (src = inbound.peek()) != null) {
+            int length = Math.min(src.remaining(), dst.remaining());
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + length);
+            dst.put(chunk);
+            src.position(src.position() + length);
+            read += length;
+            if (!src.hasRemaining()) {
+                inbound.poll();
+            }
+        }
+        if (read > 0) {
+            numOfInboundBytes.addAndGet(-read);
+            LoopbackTcpChannel peer = this.peer;
+            if (peer != null && peer.isWriteBlocked) {
+                peer.isWriteBlocked = false;
+                peer.scheduleWrite();
+            }
+        }
+        return read;
+    }
+
+    // Frames are immutable once encoded, so the peer can share the content instead of copying it.
+    // Only what fits in the inbound bytes of the peer is written, and the rest waits until the peer reads.
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        LoopbackTcpChannel peer = this.peer;
+        if (!isOpen() || peer == null) {
+            throw new IOException("Channel is closed.");
+        }
+        // Marked before checking the room, so that a read between them never misses resuming this
+        isWriteBlocked = true;
+        int length = Math.min(src.remaining(), MAX_INBOUND_BYTES - peer.numOfInboundBytes.get());
+        if (length <= 0) {
+            return 0;
+        }
+        if (length == src.remaining()) {
+            isWriteBlocked = false;
+        }
+        ByteBuffer chunk = src.slice();
+        chunk.limit(length);
+        peer.numOfInboundBytes.addAndGet(length);
+        peer.inbound.add(chunk);
+        src.position(src.position() + length);
+        peer.scheduleRead();
+        return length;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public boolean isSerializationSkipped() {
+        return isSerializationSkipped;
+    }
+
+    // Hands a command to the connection of the peer without serialization
+    void transferObject(String commandId, Integer callId, Object body, TraceSpan span) {
+        LoopbackTcpChannel peer = this.peer;
+        if (peer != null && peer.isOpen() && peer.connection != null) {
+            peer.connection.receiveObject(commandId, callId, body, span);
+        }
+    }
+
+    // The peer keeps written buffers in its queue, so the file is copied into a new buffer every time.
+    @Override
+    public long transferFrom(FileChannel file, long position, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TRANSFER_SIZE));
+        int read = file.read(buffer, position);
+        if (read <= 0) {
+            return 0;
+        }
+        buffer.flip();
+        return write(buffer);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen.get();
+    }
+
+    @Override
+    public void close() {
+        if (!isOpen.compareAndSet(true, false)) {
+            return;
+        }
+        belongingTo.removeLoopbackChannel(this);
+        belongingTo.releaseConnection();
+        LoopbackTcpChannel peer = this.peer;
+        if (peer != null) {
+            peer.onPeerClosed();
+        }
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return address;
+    }
+
+    @Override
+    public void enableInterest(int ops) {
+        if ((ops & SelectionKey.OP_WRITE) != 0) {
+            scheduleWrite();
+        }
+        if ((ops & SelectionKey.OP_READ) != 0) {
+            scheduleRead();
+        }
+    }
+
+    @Override
+    public void overrideInterest(int ops) {
+        // Nothing to do, readiness is driven by the peer
+    }
+
+    @Override
+    public void disableInterest(int ops) {
+        // Nothing to do, the connection ignores reads while it is suspended
+    }
+
+    @Override
+    public IOProcessor.Loop getBelongingTo() {
+        return belongingTo;
+    }
+
+    private void scheduleRead() {
+        if (!isReadScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        belongingTo.addEvent(() -> {
+            isReadScheduled.set(false);
+            Connection connection = this.connection;
+            if (connection == null || !isOpen()) {
+                return;
+            }
+            handle(connection, () -> {
+                if (isPeerClosed) {
+                    readRestAndClose(connection);
+                    return;
+                }
+                connection.onReadable();
+                // The content buffer might have been filled before draining everything
+                if (!inbound.isEmpty() && !connection.isReadSuspended()) {
+                    scheduleRead();
+                }
+            });
+        });
+    }
+
+    private void scheduleWrite() {
+        if (!isWriteScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        belongingTo.addEvent(() -> {
+            isWriteScheduled.set(false);
+            Connection connection = this.connection;
+            if (connection != null && isOpen()) {
+                handle(connection, connection::onWritable);
+            }
+        });
+    }
+
+    // Delivers what the peer has written so far, then closes the connection on its own loop
+    private void onPeerClosed() {
+        belongingTo.addEvent(() -> {
+            isPeerClosed = true;
+            Connection connection = this.connection;
+            if (connection == null) {
+                close();
+                return;
+            }
+            if (isOpen()) {
+                handle(connection, () -> readRestAndClose(connection));
+            }
+        });
+    }
+
+    // A read takes only what fits in the content buffer, so it's repeated until everything is read like a socket
+    // before EOF. A suspended stream reads the rest when it resumes, and the connection is closed then.
+    private void readRestAndClose(Connection connection) throws IOException {
+        while (!inbound.isEmpty() && connection.isOpen() && !connection.isReadSuspended()) {
+            connection.onReadable();
+        }
+        if (!connection.isReadSuspended()) {
+            connection.close();
+        }
+    }
+
+    private void handle(Connection connection, IOProcessor.Event event) throws IOException {
+        try {
+            event.process();
+        } catch (Exception e) {
+            log.warn("Failed to process a loopback event", e);
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.function.LongSupplier;
+
+// Receives measurements of servers and clients, e.g. to bridge them to a monitoring system.
+// Methods are called on hot paths, so implementations must be thread-safe and should not block or allocate.
+public interface Metrics {
+    enum Stage {
+        // From being read from a connection to being taken by a worker
+        QUEUE_WAIT,
+        // Decompressing and decoding the message and body
+        DECODE,
+        // Running the command, for sync commands it includes handing over to the executor
+        HANDLER,
+        // From being queued to a connection to being written to its channel
+        WRITE_QUEUE,
+    }
+
+    // Implementations which return false are never called for recording, and cost nothing.
+    default boolean isEnabled() {
+        return true;
+    }
+
+    // Called for each frame. A stream is counted per fragment, and a file is counted once when it's done.
+    void recordReceived(String commandId, long bytes);
+
+    void recordSent(String commandId, long bytes);
+
+    void recordLatency(String commandId, Stage stage, long nanos);
+
+    // Called on start for each gauge. Gauges are sampled by implementations when they are needed.
+    void registerGauge(String name, LongSupplier gauge);
+
+    static Metrics noop() {
+        return NoopMetrics.INSTANCE;
+    }
+}
@@ -0,0 +1,167 @@
+package com.github.kamatama41.nsocket;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class Node {
+    private final SocketAddress address;
+    private final AtomicReferenceArray<Connection> connections;
+    private final AtomicBoolean isReplenishing;
+    private volatile long nextReplenishTime;
+    private int replenishWaitSeconds;
+
+    Node(SocketAddress address, int numOfConnections) {
+        this.address = address;
+        this.connections = new AtomicReferenceArray<>(numOfConnections);
+        this.isReplenishing = new AtomicBoolean(false);
+        this.nextReplenishTime = 0L;
+        this.replenishWaitSeconds = 1;
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    // A node is available if it has at least one open connection under the write queue high water mark.
+    public boolean isAvailable() {
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.get(i);
+            if (connection != null && connection.isOpen() && connection.isWritable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getNumOfPendingRequests() {
+        int pending = 0;
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.get(i);
+            if (connection != null && connection.isOpen()) {
+                pending += connection.getNumOfPendingRequests();
+            }
+        }
+        return pending;
+    }
+
+    // Average of the sync command latency EWMA of open connections, or 0 if no sample exists.
+    public double getLatencyEwmaNanos() {
+        double total = 0.0;
+        int sampled = 0;
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.get(i);
+            if (connection != null && connection.isOpen() && connection.getLatencyEwmaNanos() > 0.0) {
+                total += connection.getLatencyEwmaNanos();
+                sampled++;
+            }
+        }
+        return sampled == 0 ? 0.0 : total / sampled;
+    }
+
+    // Returns the open connection which has the least pending requests, or null if nothing is open.
+    // Connections under the write queue high water mark are preferred.
+    Connection select() {
+        Connection selected = null;
+        int leastPending = Integer.MAX_VALUE;
+        boolean selectedIsWritable = false;
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.get(i);
+            if (connection == null || !connection.isOpen()) {
+                continue;
+            }
+            int pending = connection.getNumOfPendingRequests();
+            boolean writable = connection.isWritable();
+            if ((writable && !selectedIsWritable) || (writable == selectedIsWritable && pending < leastPending)) {
+                selected = connection;
+                leastPending = pending;
+                selectedIsWritable = writable;
+            }
+        }
+        return selected;
+    }
+
+    boolean isFilled() {
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.get(i);
+            if (connection == null || !connection.isOpen()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Opens connections for all empty or dead slots, then returns the selected one.
+    synchronized Connection fill(Opener opener) throws IOException {
+        IOException lastError = null;
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.get(i);
+            if (connection != null && connection.isOpen()) {
+                continue;
+            }
+            try {
+                connections.set(i, opener.open(address));
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        Connection selected = select();
+        if (selected == null) {
+            throw lastError != null ? lastError :
+                    new IOException(String.format("Connection to %s could not be established.", address.toString()));
+        }
+        return selected;
+    }
+
+    boolean remove(Connection connection) {
+        for (int i = 0; i < connections.length(); i++) {
+            if (connections.compareAndSet(i, connection, null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Open connections only, a closed one stays in its slot until it is replaced or removed
+    List<Connection> getConnections() {
+        List<Connection> list = new ArrayList<>(connections.length());
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.get(i);
+            if (connection != null && connection.isOpen()) {
+                list.add(connection);
+            }
+        }
+        return list;
+    }
+
+    boolean tryStartReplenishing() {
+        if (System.currentTimeMillis() < nextReplenishTime) {
+            return false;
+        }
+        return isReplenishing.compareAndSet(false, true);
+    }
+
+    void finishReplenishing(boolean succeeded) {
+        if (succeeded) {
+            replenishWaitSeconds = 1;
+            nextReplenishTime = 0L;
+        } else {
+            nextReplenishTime = System.currentTimeMillis() + replenishWaitSeconds * 1000L;
+            replenishWaitSeconds = Math.min(replenishWaitSeconds * 2, 60);  // Max 1 min
+        }
+        isReplenishing.set(false);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Node{%s}", address);
+    }
+
+    @FunctionalInterface
+    interface Opener {
+        Connection open(SocketAddress address) throws IOException;
+    }
+}
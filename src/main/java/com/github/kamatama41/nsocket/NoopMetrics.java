@@ -0,0 +1,31 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.function.LongSupplier;
+
+class NoopMetrics implements Metrics {
+    static final NoopMetrics INSTANCE = new NoopMetrics();
+
+    private NoopMetrics() {
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return false;
+    }
+
+    @Override
+    public void recordReceived(String commandId, long bytes) {
+    }
+
+    @Override
+    public void recordSent(String commandId, long bytes) {
+    }
+
+    @Override
+    public void recordLatency(String commandId, Stage stage, long nanos) {
+    }
+
+    @Override
+    public void registerGauge(String name, LongSupplier gauge) {
+    }
+}
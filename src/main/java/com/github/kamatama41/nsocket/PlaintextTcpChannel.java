@@ -5,20 +5,25 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class PlaintextTcpChannel implements TcpChannel {
     protected final Logger log = LoggerFactory.getLogger(this.getClass());
     private final SocketChannel channel;
     private final IOProcessor.Loop belongingTo;
+    private final AtomicBoolean isClosed;
     private SocketAddress remoteSocketAddress;
 
     PlaintextTcpChannel(SocketChannel channel, IOProcessor.Loop belongingTo) {
         this.channel = channel;
         this.belongingTo = belongingTo;
+        this.isClosed = new AtomicBoolean(false);
     }
 
     @Override
@@ -26,16 +31,21 @@ class PlaintextTcpChannel implements TcpChannel {
         belongingTo.addEvent(() -> {
             log.trace("connect");
             channel.configureBlocking(false);
-            channel.socket().setTcpNoDelay(true);
+            configureSocket();
             SelectionKey connectKey = channel.register(belongingTo.getSelector(), SelectionKey.OP_CONNECT);
             connectKey.attach(connection);
-            channel.connect(remote);
+            if (channel.connect(remote)) {
+                // e.g. Unix domain sockets can be connected immediately
+                doFinishConnect(connection);
+            }
         });
         try {
             if (!connection.waitUntilConnected(timeoutSeconds)) {
+                close();
                 throw new IOException("Connection timed out");
             }
         } catch (InterruptedException e) {
+            close();
             throw new IOException("Connecting to server failed by interruption");
         }
 
@@ -54,7 +64,11 @@ class PlaintextTcpChannel implements TcpChannel {
         if (!channel.finishConnect()) {
             throw new IOException("Failed to connect to server");
         }
-        channel.socket().setTcpNoDelay(true);
+        doFinishConnect(connection);
+    }
+
+    protected void doFinishConnect(Connection connection) throws IOException {
+        configureSocket();
         SelectionKey readKey = channel.register(belongingTo.getSelector(), SelectionKey.OP_READ);
         readKey.attach(connection);
         updateRemoteSocketAddress();
@@ -70,7 +84,7 @@ class PlaintextTcpChannel implements TcpChannel {
     protected void doRegister(Connection connection) throws IOException {
         log.trace("register");
         channel.configureBlocking(false);
-        channel.socket().setTcpNoDelay(true);
+        configureSocket();
         connection.assignConnectionId();
 
         final SelectionKey key = channel.register(belongingTo.getSelector(), SelectionKey.OP_READ);
@@ -91,6 +105,12 @@ class PlaintextTcpChannel implements TcpChannel {
         return channel.write(src);
     }
 
+    // The kernel copies the file to the socket directly (e.g. sendfile) without going through the heap.
+    @Override
+    public long transferFrom(FileChannel file, long position, long count) throws IOException {
+        return file.transferTo(position, count, channel);
+    }
+
     @Override
     public boolean isOpen() {
         return channel.isConnected() && channel.isOpen();
@@ -98,15 +118,21 @@ class PlaintextTcpChannel implements TcpChannel {
 
     @Override
     public void close() throws IOException {
-        if (channel.isOpen()) {
-            Selector selector = belongingTo.getSelector();
-            SelectionKey key = getKey();
-            selector.wakeup();
-            if (key != null) {
-                key.cancel();
-                key.attach(null);
-            }
+        // Connections can be closed by other threads, so only the first call releases the count of the loop
+        if (!isClosed.compareAndSet(false, true)) {
+            return;
+        }
+        Selector selector = belongingTo.getSelector();
+        SelectionKey key = getKey();
+        selector.wakeup();
+        if (key != null) {
+            key.cancel();
+            key.attach(null);
+        }
+        try {
             channel.close();
+        } finally {
+            belongingTo.releaseConnection();
         }
     }
 
@@ -117,17 +143,11 @@ class PlaintextTcpChannel implements TcpChannel {
 
     @Override
     public void enableInterest(int ops) {
-        belongingTo.addEvent(() -> {
-            SelectionKey key = getKey();
-            if (key != null && key.isValid()) {
-                int current = key.interestOps();
-                if (!alreadyIncluded(current, ops)) {
-                    int newOps = key.interestOps() | ops;
-                    key.interestOps(newOps);
-                    log.trace("Updated interest: {} -> {}", current, newOps);
-                }
-            }
-        });
+        if (Thread.currentThread() == belongingTo) {
+            doEnableInterest(ops);
+        } else {
+            belongingTo.addEvent(() -> doEnableInterest(ops));
+        }
     }
 
     @Override
@@ -142,8 +162,44 @@ class PlaintextTcpChannel implements TcpChannel {
         }
     }
 
-    private void updateRemoteSocketAddress() {
-        this.remoteSocketAddress = channel.socket().getRemoteSocketAddress();
+    @Override
+    public void disableInterest(int ops) {
+        SelectionKey key = getKey();
+        if (key != null && key.isValid()) {
+            int current = key.interestOps();
+            if ((current & ops) != 0) {
+                key.interestOps(current & ~ops);
+                log.trace("Disabled interest: {} -> {}", current, current & ~ops);
+            }
+        }
+    }
+
+    @Override
+    public IOProcessor.Loop getBelongingTo() {
+        return belongingTo;
+    }
+
+    private void doEnableInterest(int ops) {
+        SelectionKey key = getKey();
+        if (key != null && key.isValid()) {
+            int current = key.interestOps();
+            if (!alreadyIncluded(current, ops)) {
+                int newOps = key.interestOps() | ops;
+                key.interestOps(newOps);
+                log.trace("Updated interest: {} -> {}", current, newOps);
+            }
+        }
+    }
+
+    // Unix domain socket channels support neither TCP options nor the socket adaptor.
+    private void configureSocket() throws IOException {
+        if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+    }
+
+    private void updateRemoteSocketAddress() throws IOException {
+        this.remoteSocketAddress = channel.getRemoteAddress();
     }
 
     private SelectionKey getKey() {
@@ -0,0 +1,26 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+class PowerOfTwoChoicesLoadBalancer implements LoadBalancer {
+    @Override
+    public Node select(List<Node> nodes, String routingKey) {
+        if (nodes.size() == 1) {
+            return nodes.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(nodes.size());
+        int second = random.nextInt(nodes.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        Node a = nodes.get(first);
+        Node b = nodes.get(second);
+        return cost(b) < cost(a) ? b : a;
+    }
+
+    double cost(Node node) {
+        return node.getNumOfPendingRequests();
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.kamatama41.nsocket;
+
+import java.beans.ConstructorProperties;
+
+// A snapshot of an IO processor (selector loop) thread.
+public class ProcessorStats {
+    private final String name;
+    private final int numOfConnections;
+    private final int numOfRegisteredKeys;
+    private final int numOfPendingEvents;
+    private final long numOfSelects;
+    private final long numOfSelectedKeys;
+    private final long numOfProcessedEvents;
+
+    @ConstructorProperties({"name", "numOfConnections", "numOfRegisteredKeys", "numOfPendingEvents",
+            "numOfSelects", "numOfSelectedKeys", "numOfProcessedEvents"})
+    public ProcessorStats(String name, int numOfConnections, int numOfRegisteredKeys, int numOfPendingEvents,
+                          long numOfSelects, long numOfSelectedKeys, long numOfProcessedEvents) {
+        this.name = name;
+        this.numOfConnections = numOfConnections;
+        this.numOfRegisteredKeys = numOfRegisteredKeys;
+        this.numOfPendingEvents = numOfPendingEvents;
+        this.numOfSelects = numOfSelects;
+        this.numOfSelectedKeys = numOfSelectedKeys;
+        this.numOfProcessedEvents = numOfProcessedEvents;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNumOfConnections() {
+        return numOfConnections;
+    }
+
+    // Keys registered to the selector, loopback channels are not included.
+    public int getNumOfRegisteredKeys() {
+        return numOfRegisteredKeys;
+    }
+
+    public int getNumOfPendingEvents() {
+        return numOfPendingEvents;
+    }
+
+    // Selects which returned at least one key, timeouts and wakeups are not counted.
+    public long getNumOfSelects() {
+        return numOfSelects;
+    }
+
+    public long getNumOfSelectedKeys() {
+        return numOfSelectedKeys;
+    }
+
+    public long getNumOfProcessedEvents() {
+        return numOfProcessedEvents;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ProcessorStats{name=%s, connections=%d, keys=%d, pendingEvents=%d, selects=%d, selectedKeys=%d, processedEvents=%d}",
+                name, numOfConnections, numOfRegisteredKeys, numOfPendingEvents, numOfSelects, numOfSelectedKeys, numOfProcessedEvents);
+    }
+}
@@ -0,0 +1,13 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class RoundRobinLoadBalancer implements LoadBalancer {
+    private final AtomicInteger counter = new AtomicInteger(0);
+
+    @Override
+    public Node select(List<Node> nodes, String routingKey) {
+        return nodes.get(Math.abs(counter.getAndAdd(1) % nodes.size()));
+    }
+}
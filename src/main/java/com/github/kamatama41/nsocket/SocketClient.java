@@ -1,37 +1,52 @@
 package com.github.kamatama41.nsocket;
 
+import com.github.kamatama41.nsocket.codec.Compressor;
 import com.github.kamatama41.nsocket.codec.ObjectCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.channels.SocketChannel;
+import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.IntPredicate;
 
-public class SocketClient {
+public class SocketClient implements SocketClientMXBean {
     private final Logger log = LoggerFactory.getLogger(this.getClass());
-    private final IOProcessor processor;
-    private final CommandWorker worker;
+    private IOProcessor processor;
+    private CommandWorker worker;
     private final Context context;
-    private final ConcurrentMap<String, Connection> activeConnections;
+    private final ConcurrentMap<String, Node> nodes;
     private final Object lock = new Object();
+    private ExecutorService replenisher;
+    private LoadBalancer loadBalancer;
     private int connectionTimeoutSeconds;
     private int connectionRetryCount;
+    private int numOfConnectionsPerNode;
+    private int numOfWorkers;
+    private int numOfProcessors;
+    private boolean isJmxEnabled;
+    private ObjectName objectName;
 
     public SocketClient() {
         this.context = Context.client();
-        this.worker = CommandWorker.client(context);
-        this.processor = IOProcessor.client(context);
-        this.activeConnections = new ConcurrentHashMap<>();
+        this.nodes = new ConcurrentHashMap<>();
         this.connectionTimeoutSeconds = 10;
         this.connectionRetryCount = 6;
+        this.numOfConnectionsPerNode = 1;
+        this.loadBalancer = LoadBalancer.roundRobin();
+        this.numOfWorkers = 1;
+        this.numOfProcessors = 1;
+        this.isJmxEnabled = true;
         Thread shutdownHook = new Thread(this::shutdownHook);
         shutdownHook.setName("shutdownHook");
         Runtime.getRuntime().addShutdownHook(shutdownHook);
@@ -39,41 +54,72 @@ public class SocketClient {
 
     public synchronized void open() throws IOException {
         log.info("Opening connection..");
+        worker = CommandWorker.client(numOfWorkers, context);
+        processor = IOProcessor.client(numOfProcessors, context);
         registerCommand(new SetConnectionIdCommand());
         registerCommand(new HeartbeatCommand());
         registerCommand(new SyncResultCommand(context));
         registerCommand(new ErrorCommand());
+        registerCommand(new CompressionCommand());
         registerListener(new DisconnectedListener());
 
+        replenisher = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setName(context.getName() + "-replenisher");
+            thread.setDaemon(true);
+            return thread;
+        });
         worker.start();
         processor.start();
+        worker.registerGauges();
+        processor.registerGauges();
+        if (isJmxEnabled) {
+            objectName = Jmx.register(this, "SocketClient", context.getName());
+        }
     }
 
     public synchronized void close() throws IOException {
-        processor.stop();
-        worker.stop();
-        for (Connection connection : activeConnections.values()) {
-            connection.close();
+        Jmx.unregister(objectName);
+        objectName = null;
+        if (replenisher != null) {
+            replenisher.shutdownNow();
+        }
+        if (processor != null) {
+            processor.stop();
+        }
+        if (worker != null) {
+            worker.stop();
+        }
+        for (Node node : nodes.values()) {
+            for (Connection connection : node.getConnections()) {
+                connection.close();
+            }
         }
-        activeConnections.clear();
+        nodes.clear();
     }
 
     public void setName(String name) {
         this.context.setName(name);
     }
 
+    // The client is exposed as an MBean by default, see SocketClientMXBean.
+    public void setJmxEnabled(boolean isJmxEnabled) {
+        this.isJmxEnabled = isJmxEnabled;
+    }
+
+    @Override
     public void setDefaultContentBufferSize(int defaultContentBufferSize) {
         this.context.setDefaultContentBufferSize(defaultContentBufferSize);
     }
 
-    public Connection addNode(InetSocketAddress address) throws IOException {
+    public Connection addNode(SocketAddress address) throws IOException {
         synchronized (lock) {
-            Connection connection = activeConnections.get(address.toString());
-            if (connection != null) {
+            Node node = nodes.computeIfAbsent(address.toString(), k -> new Node(address, numOfConnectionsPerNode));
+            if (node.isFilled()) {
                 log.info("{} is already connected.", address.toString());
-                return connection;
+                return node.select();
             }
-            return openConnection(address);
+            return node.fill(this::openConnection);
         }
     }
 
@@ -82,11 +128,188 @@ public class SocketClient {
     }
 
     public Connection reconnect(Connection connection, IntPredicate customConditionToRetry) throws IOException {
-        return ensureConnection((InetSocketAddress) connection.getRemoteSocketAddress(), customConditionToRetry);
+        return ensureConnection(connection.getRemoteSocketAddress(), customConditionToRetry);
     }
 
     public List<Connection> getActiveConnections() {
-        return new ArrayList<>(activeConnections.values());
+        List<Connection> connections = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            connections.addAll(node.getConnections());
+        }
+        return connections;
+    }
+
+    public void sendCommand(SocketAddress address, String id, Object body) throws IOException {
+        selectConnection(address).sendCommand(id, body);
+    }
+
+    public <R> R sendSyncCommand(SocketAddress address, String id, Object body) throws IOException {
+        return selectConnection(address).sendSyncCommand(id, body);
+    }
+
+    public void sendCommandToAnyNode(String id, Object body) throws IOException {
+        sendCommandToAnyNode(id, body, null);
+    }
+
+    public void sendCommandToAnyNode(String id, Object body, String routingKey) throws IOException {
+        selectConnection(selectNode(routingKey).getAddress()).sendCommand(id, body);
+    }
+
+    public <R> R sendSyncCommandToAnyNode(String id, Object body) throws IOException {
+        return sendSyncCommandToAnyNode(id, body, null);
+    }
+
+    public <R> R sendSyncCommandToAnyNode(String id, Object body, String routingKey) throws IOException {
+        return selectConnection(selectNode(routingKey).getAddress()).sendSyncCommand(id, body);
+    }
+
+    public void broadcastCommand(String id, Object body) {
+        Frame frame = Frame.of(context.getCodec(), id, null, body);
+        for (Node node : nodes.values()) {
+            Connection connection = node.select();
+            if (connection != null) {
+                connection.writeFrame(frame);
+            }
+        }
+    }
+
+    @Override
+    public int getNumOfNodes() {
+        return nodes.size();
+    }
+
+    @Override
+    public int getNumOfActiveConnections() {
+        int count = 0;
+        for (Node node : nodes.values()) {
+            count += node.getConnections().size();
+        }
+        return count;
+    }
+
+    @Override
+    public Map<String, Integer> getNumOfConnectionsPerProcessor() {
+        if (processor == null) {
+            return Collections.emptyMap();
+        }
+        return processor.getNumOfConnectionsPerProcessor();
+    }
+
+    @Override
+    public List<ProcessorStats> getProcessorStats() {
+        if (processor == null) {
+            return Collections.emptyList();
+        }
+        return processor.getProcessorStats();
+    }
+
+    @Override
+    public int getNumOfQueuedRequests() {
+        return worker == null ? 0 : worker.getNumOfQueuedRequests();
+    }
+
+    @Override
+    public int getNumOfInFlightSyncRequests() {
+        return context.getSyncManager().getNumOfInFlightRequests();
+    }
+
+    @Override
+    public long getNumOfContentBufferExpansions() {
+        return context.getNumOfContentBufferExpansions();
+    }
+
+    @Override
+    public long getNumOfSlowCommands() {
+        return context.getStallDetector().getNumOfSlowCommands();
+    }
+
+    @Override
+    public long getNumOfSlowConsumers() {
+        return context.getStallDetector().getNumOfSlowConsumers();
+    }
+
+    @Override
+    public long getNumOfSlowLoops() {
+        return context.getStallDetector().getNumOfSlowLoops();
+    }
+
+    @Override
+    public long getSlowCommandThresholdMillis() {
+        return context.getStallDetector().getSlowCommandThresholdMillis();
+    }
+
+    @Override
+    public long getSlowConsumerThresholdMillis() {
+        return context.getStallDetector().getSlowConsumerThresholdMillis();
+    }
+
+    @Override
+    public long getSlowLoopThresholdMillis() {
+        return context.getStallDetector().getSlowLoopThresholdMillis();
+    }
+
+    @Override
+    public String getName() {
+        return context.getName();
+    }
+
+    @Override
+    public int getNumOfWorkers() {
+        return numOfWorkers;
+    }
+
+    @Override
+    public int getNumOfProcessors() {
+        return numOfProcessors;
+    }
+
+    @Override
+    public boolean isSslEnabled() {
+        return context.getSslContext().isEnabled();
+    }
+
+    @Override
+    public int getNumOfConnectionsPerNode() {
+        return numOfConnectionsPerNode;
+    }
+
+    @Override
+    public int getCompressionThresholdBytes() {
+        return context.getCompressionThresholdBytes();
+    }
+
+    @Override
+    public int getConnectionTimeoutSeconds() {
+        return connectionTimeoutSeconds;
+    }
+
+    @Override
+    public int getHeartbeatIntervalSeconds() {
+        return context.getHeartbeatIntervalSeconds();
+    }
+
+    @Override
+    public int getDefaultContentBufferSize() {
+        return context.getDefaultContentBufferSize();
+    }
+
+    @Override
+    public long getWriteQueueHighWaterMark() {
+        return context.getWriteQueueHighWaterMark();
+    }
+
+    @Override
+    public int getStreamFragmentSize() {
+        return context.getStreamFragmentSize();
+    }
+
+    @Override
+    public int getMaxBufferedStreamFragments() {
+        return context.getMaxBufferedStreamFragments();
+    }
+
+    public List<Node> getNodes() {
+        return new ArrayList<>(nodes.values());
     }
 
     public void registerCommand(Command command) {
@@ -97,6 +320,14 @@ public class SocketClient {
         this.context.getCommandRegistry().registerSyncCommand(syncCommand);
     }
 
+    public void registerStreamCommand(StreamCommand streamCommand) {
+        this.context.getCommandRegistry().registerStreamCommand(streamCommand);
+    }
+
+    public void registerFileCommand(FileCommand fileCommand) {
+        this.context.getCommandRegistry().registerFileCommand(fileCommand);
+    }
+
     public void registerListener(CommandListener listener) {
         this.context.getListenerRegistry().registerListener(listener);
     }
@@ -105,6 +336,60 @@ public class SocketClient {
         this.context.setCodec(codec);
     }
 
+    // Messages larger than this are compressed if the peer supports it. A negative value (default) disables it.
+    public void setCompressionThresholdBytes(int compressionThresholdBytes) {
+        this.context.setCompressionThresholdBytes(compressionThresholdBytes);
+    }
+
+    // Compressed frames which claim to be larger than this when decompressed are rejected before allocating
+    public void setMaxDecompressedBytes(int maxDecompressedBytes) {
+        this.context.setMaxDecompressedBytes(maxDecompressedBytes);
+    }
+
+    // Deflate is registered by default. Compressors registered later are preferred.
+    public void registerCompressor(Compressor compressor) {
+        this.context.registerCompressor(compressor);
+    }
+
+    // Streams are sent in fragments of this size, and a receiver buffers up to the max number of them per stream.
+    @Override
+    public void setStreamFragmentSize(int streamFragmentSize) {
+        this.context.setStreamFragmentSize(streamFragmentSize);
+    }
+
+    // Measurements are not recorded by default. It must be set before starting.
+    public void setMetrics(Metrics metrics) {
+        this.context.setMetrics(metrics);
+    }
+
+    // Command handlers which take longer than this are logged and counted (default 1s). A negative value disables it.
+    @Override
+    public void setSlowCommandThresholdMillis(long slowCommandThresholdMillis) {
+        this.context.getStallDetector().setSlowCommandThresholdMillis(slowCommandThresholdMillis);
+    }
+
+    // Connections whose write queue isn't drained for longer than this are logged and counted (default 10s).
+    @Override
+    public void setSlowConsumerThresholdMillis(long slowConsumerThresholdMillis) {
+        this.context.getStallDetector().setSlowConsumerThresholdMillis(slowConsumerThresholdMillis);
+    }
+
+    // IO loop iterations which take longer than this except waiting in select are logged and counted (default 500ms).
+    @Override
+    public void setSlowLoopThresholdMillis(long slowLoopThresholdMillis) {
+        this.context.getStallDetector().setSlowLoopThresholdMillis(slowLoopThresholdMillis);
+    }
+
+    // Tracing is disabled by default. It must be set before starting, see TraceInterceptor.
+    public void setTraceInterceptor(TraceInterceptor traceInterceptor) {
+        this.context.setTraceInterceptor(traceInterceptor);
+    }
+
+    @Override
+    public void setMaxBufferedStreamFragments(int maxBufferedStreamFragments) {
+        this.context.setMaxBufferedStreamFragments(maxBufferedStreamFragments);
+    }
+
     public void setConnectionTimeoutSeconds(int connectionTimeoutSeconds) {
         this.connectionTimeoutSeconds = connectionTimeoutSeconds;
     }
@@ -113,14 +398,70 @@ public class SocketClient {
         this.connectionRetryCount = connectionRetryCount;
     }
 
+    // Applied to nodes added after this call, nodes already added keep their number of connections.
+    public void setNumOfConnectionsPerNode(int numOfConnectionsPerNode) {
+        this.numOfConnectionsPerNode = numOfConnectionsPerNode;
+    }
+
+    public void setLoadBalancer(LoadBalancer loadBalancer) {
+        this.loadBalancer = loadBalancer;
+    }
+
+    @Override
+    public void setWriteQueueHighWaterMark(long writeQueueHighWaterMark) {
+        this.context.setWriteQueueHighWaterMark(writeQueueHighWaterMark);
+    }
+
+    public void setNumOfWorkers(int numOfWorkers) {
+        this.numOfWorkers = numOfWorkers;
+    }
+
+    public void setNumOfProcessors(int numOfProcessors) {
+        this.numOfProcessors = numOfProcessors;
+    }
+
+    @Override
     public void setHeartbeatIntervalSeconds(int heartbeatIntervalSeconds) {
         this.context.setHeartbeatIntervalSeconds(heartbeatIntervalSeconds);
     }
 
+    // Threads which run the delegated tasks of TLS handshakes (e.g. key exchange) out of the IO loops.
+    public void setNumOfHandshakeThreads(int numOfHandshakeThreads) {
+        this.context.setNumOfHandshakeThreads(numOfHandshakeThreads);
+    }
+
+    // Session tickets (RFC 5077) let servers resume sessions without keeping them in the cache.
+    // They are enabled by default on Java 14 or later. On Java 13, start the JVM with the system properties
+    // "jdk.tls.client.enableSessionTicketExtension=true" and "jdk.tls.server.enableSessionTicketExtension=true".
     public void setSslContext(SSLContext sslContext) {
         this.context.getSslContext().setSslContext(sslContext);
     }
 
+    // Applied to the session context of the SSLContext, which is left as it is unless these are called
+    public void setSslSessionCacheSize(int sslSessionCacheSize) {
+        this.context.getSslContext().setSessionCacheSize(sslSessionCacheSize);
+    }
+
+    public void setSslSessionTimeoutSeconds(int sslSessionTimeoutSeconds) {
+        this.context.getSslContext().setSessionTimeoutSeconds(sslSessionTimeoutSeconds);
+    }
+
+    public long getNumOfFullSslHandshakes() {
+        return this.context.getSslContext().getNumOfFullHandshakes();
+    }
+
+    public long getNumOfResumedSslHandshakes() {
+        return this.context.getSslContext().getNumOfResumedHandshakes();
+    }
+
+    public long getNumOfFailedSslHandshakes() {
+        return this.context.getSslContext().getNumOfFailedHandshakes();
+    }
+
+    public Histogram getSslHandshakeDurationHistogram() {
+        return this.context.getSslContext().getHandshakeDurations();
+    }
+
     private void shutdownHook() {
         try {
             log.info("Shutdown detected. Closing client..");
@@ -130,22 +471,69 @@ public class SocketClient {
         }
     }
 
-    private Connection openConnection(InetSocketAddress address) throws IOException {
-        TcpChannel channel = TcpChannel.open(SocketChannel.open(), processor.selectProcessor(), context);
+    private Connection openConnection(SocketAddress address) throws IOException {
+        TcpChannel channel = TcpChannel.open(address, processor.selectProcessor(), context);
         Connection connection = new Connection(channel, worker, context);
         channel.connect(address, connectionTimeoutSeconds, connection);
-        activeConnections.put(address.toString(), connection);
         return connection;
     }
 
-    private Connection ensureConnection(InetSocketAddress address, IntPredicate customConditionToRetry) throws IOException {
-        Connection connection = activeConnections.get(address.toString());
-        if (connection != null && connection.isOpen()) {
+    private Node selectNode(String routingKey) throws IOException {
+        List<Node> available = new ArrayList<>(nodes.size());
+        for (Node node : nodes.values()) {
+            if (node.isAvailable()) {
+                available.add(node);
+            } else if (!node.isFilled()) {
+                replenish(node);
+            }
+        }
+        if (available.isEmpty()) {
+            throw new IOException("No node is available.");
+        }
+        return loadBalancer.select(available, routingKey);
+    }
+
+    private Connection selectConnection(SocketAddress address) throws IOException {
+        Node node = nodes.get(address.toString());
+        if (node == null) {
+            throw new IllegalArgumentException(String.format("%s is not added.", address.toString()));
+        }
+        Connection connection = node.select();
+        if (connection == null) {
+            return ensureConnection(address, i -> true);
+        }
+        if (!node.isFilled()) {
+            replenish(node);
+        }
+        return connection;
+    }
+
+    private void replenish(Node node) {
+        if (!node.tryStartReplenishing()) {
+            return;
+        }
+        replenisher.execute(() -> {
+            boolean succeeded = false;
+            try {
+                node.fill(this::openConnection);
+                succeeded = node.isFilled();
+            } catch (IOException e) {
+                log.warn(String.format("Failed to replenish connections to %s", node.getAddress()), e);
+            } finally {
+                node.finishReplenishing(succeeded);
+            }
+        });
+    }
+
+    private Connection ensureConnection(SocketAddress address, IntPredicate customConditionToRetry) throws IOException {
+        Node node = nodes.computeIfAbsent(address.toString(), k -> new Node(address, numOfConnectionsPerNode));
+        Connection connection = node.select();
+        if (connection != null) {
             return connection;
         }
         synchronized (lock) {
-            connection = activeConnections.get(address.toString());
-            if (connection != null && connection.isOpen()) {
+            connection = node.select();
+            if (connection != null) {
                 return connection;
             }
             int attempts = 1;
@@ -153,10 +541,7 @@ public class SocketClient {
             while (attempts <= connectionRetryCount && customConditionToRetry.test(attempts)) {
                 log.warn("Try reconnecting.. {}/{}", attempts, connectionRetryCount);
                 try {
-                    connection = openConnection(address);
-                    if (connection.isOpen()) {
-                        return connection;
-                    }
+                    return node.fill(this::openConnection);
                 } catch (IOException e) {
                     log.warn(String.format("Failed to connect to %s", address.toString()), e);
                 }
@@ -176,8 +561,9 @@ public class SocketClient {
     private class DisconnectedListener implements CommandListener {
         @Override
         public void onDisconnected(Connection connection) {
-            InetSocketAddress address = (InetSocketAddress) connection.getRemoteSocketAddress();
-            if (!activeConnections.remove(address.toString(), connection)) {
+            SocketAddress address = connection.getRemoteSocketAddress();
+            Node node = nodes.get(address.toString());
+            if (node == null || !node.remove(connection)) {
                 log.info("{} seems to be reconnected or deleted.", connection.toString());
             }
         }
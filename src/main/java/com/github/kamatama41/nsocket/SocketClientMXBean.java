@@ -0,0 +1,76 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.List;
+import java.util.Map;
+
+// Exposed as "com.github.kamatama41.nsocket:type=SocketClient,name=<name>" while the client is open.
+// Writable attributes are safe to change while running.
+public interface SocketClientMXBean {
+    String getName();
+
+    int getNumOfWorkers();
+
+    int getNumOfProcessors();
+
+    boolean isSslEnabled();
+
+    int getNumOfNodes();
+
+    int getNumOfConnectionsPerNode();
+
+    int getNumOfActiveConnections();
+
+    Map<String, Integer> getNumOfConnectionsPerProcessor();
+
+    List<ProcessorStats> getProcessorStats();
+
+    // Requests waiting for the worker threads
+    int getNumOfQueuedRequests();
+
+    // Sync commands sent from this client waiting for their results
+    int getNumOfInFlightSyncRequests();
+
+    long getNumOfContentBufferExpansions();
+
+    long getNumOfSlowCommands();
+
+    long getNumOfSlowConsumers();
+
+    long getNumOfSlowLoops();
+
+    int getCompressionThresholdBytes();
+
+    int getConnectionTimeoutSeconds();
+
+    int getHeartbeatIntervalSeconds();
+
+    void setHeartbeatIntervalSeconds(int heartbeatIntervalSeconds);
+
+    int getDefaultContentBufferSize();
+
+    void setDefaultContentBufferSize(int defaultContentBufferSize);
+
+    long getWriteQueueHighWaterMark();
+
+    void setWriteQueueHighWaterMark(long writeQueueHighWaterMark);
+
+    int getStreamFragmentSize();
+
+    void setStreamFragmentSize(int streamFragmentSize);
+
+    int getMaxBufferedStreamFragments();
+
+    void setMaxBufferedStreamFragments(int maxBufferedStreamFragments);
+
+    long getSlowCommandThresholdMillis();
+
+    void setSlowCommandThresholdMillis(long slowCommandThresholdMillis);
+
+    long getSlowConsumerThresholdMillis();
+
+    void setSlowConsumerThresholdMillis(long slowConsumerThresholdMillis);
+
+    long getSlowLoopThresholdMillis();
+
+    void setSlowLoopThresholdMillis(long slowLoopThresholdMillis);
+}
@@ -1,31 +1,53 @@
 package com.github.kamatama41.nsocket;
 
+import com.github.kamatama41.nsocket.codec.Compressor;
 import com.github.kamatama41.nsocket.codec.ObjectCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
 
-public class SocketServer {
+public class SocketServer implements SocketServerMXBean {
     private final Logger log = LoggerFactory.getLogger(this.getClass());
-    private final ServerSocketChannel serverChannel;
+    private ServerSocketChannel serverChannel;
     private final Context context;
+    private final ConnectionRegistry connectionRegistry;
     private IOProcessor processor;
     private CommandWorker worker;
     private Acceptor acceptor;
-    private boolean isRunning;
+    private final TopicRegistry topicRegistry;
+    private LoopbackAddress loopbackAddress;
+    private volatile boolean isRunning;
     private String host = "127.0.0.1";
     private int port = 30000;
+    private String unixDomainSocketPath = null;
     private int numOfWorkers = 1;
     private int numOfProcessors = Runtime.getRuntime().availableProcessors();
+    private boolean isJmxEnabled = true;
+    private ObjectName objectName;
 
     public SocketServer() throws IOException {
         this.isRunning = false;
-        this.serverChannel = ServerSocketChannel.open();
         this.context = Context.server();
+        this.connectionRegistry = new ConnectionRegistry();
+        this.topicRegistry = new TopicRegistry(context);
+        // Registered once, since the listeners of the context are kept across restarts
+        registerListener(connectionRegistry);
+        registerListener(topicRegistry);
         Thread shutdownHook = new Thread(this::shutdownHook);
         shutdownHook.setName("shutdownHook");
         Runtime.getRuntime().addShutdownHook(shutdownHook);
@@ -36,22 +58,28 @@ public class SocketServer {
             return;
         }
         log.info("Starting server..");
+        serverChannel = openServerChannel();
         worker = CommandWorker.server(numOfWorkers, context);
         processor = IOProcessor.server(numOfProcessors, context);
         acceptor = new Acceptor(serverChannel, processor, worker, context);
+        topicRegistry.setProcessor(processor);
         registerCommand(new HeartbeatCommand());
         registerCommand(new SyncResultCommand(context));
         registerCommand(new ErrorCommand());
-
-        serverChannel.configureBlocking(true);
-        serverChannel.socket().setSoTimeout(0);
-        serverChannel.socket().setReuseAddress(true);
-        serverChannel.socket().bind(new InetSocketAddress(host, port));
+        registerCommand(new CompressionCommand());
+        registerCommand(new SubscribeCommand(topicRegistry));
+        registerCommand(new UnsubscribeCommand(topicRegistry));
 
         worker.start();
         processor.start();
+        worker.registerGauges();
+        processor.registerGauges();
+        context.getMetrics().registerGauge(context.getName() + ".connections", connectionRegistry::size);
         acceptor.start();
         isRunning = true;
+        if (isJmxEnabled) {
+            objectName = Jmx.register(this, "SocketServer", context.getName());
+        }
     }
 
     public synchronized void stop() throws IOException {
@@ -59,11 +87,206 @@ public class SocketServer {
             return;
         }
         isRunning = false;
+        Jmx.unregister(objectName);
+        objectName = null;
 
         processor.stop();
         acceptor.stop();
         worker.stop();
         serverChannel.close();
+        if (unixDomainSocketPath != null) {
+            Files.deleteIfExists(Paths.get(unixDomainSocketPath));
+        }
+        connectionRegistry.clear();
+    }
+
+    public void publish(String topic, String id, Object body) {
+        if (!isRunning) {
+            throw new IllegalStateException("Server is not running.");
+        }
+        topicRegistry.publish(topic, id, body);
+    }
+
+    // An address for clients in the same JVM, connections to it bypass the network stack.
+    public synchronized SocketAddress getLoopbackAddress() {
+        if (loopbackAddress == null) {
+            loopbackAddress = new LoopbackAddress(this, context.getName());
+        }
+        return loopbackAddress;
+    }
+
+    synchronized void acceptLoopback(LoopbackTcpChannel client) throws IOException {
+        if (!isRunning) {
+            throw new IOException("Server is not running.");
+        }
+        acceptor.acceptLoopback(client);
+    }
+
+    public Connection getConnection(int connectionId) {
+        return connectionRegistry.get(connectionId);
+    }
+
+    public Collection<Connection> getConnections() {
+        return connectionRegistry.getConnections();
+    }
+
+    @Override
+    public int getNumOfConnections() {
+        return connectionRegistry.size();
+    }
+
+    @Override
+    public Map<String, Integer> getNumOfConnectionsPerProcessor() {
+        if (processor == null) {
+            return Collections.emptyMap();
+        }
+        return processor.getNumOfConnectionsPerProcessor();
+    }
+
+    @Override
+    public List<ProcessorStats> getProcessorStats() {
+        if (processor == null) {
+            return Collections.emptyList();
+        }
+        return processor.getProcessorStats();
+    }
+
+    // Snapshots of all connections in the order up to the limit, e.g. ConnectionStats.Stat.SENT_BYTES.descending()
+    public List<ConnectionStats> getConnectionStats(Comparator<ConnectionStats> order, int limit) {
+        List<ConnectionStats> stats = new ArrayList<>(connectionRegistry.size());
+        for (Connection connection : connectionRegistry.getConnections()) {
+            stats.add(connection.getStats());
+        }
+        stats.sort(order);
+        return stats.size() > limit ? new ArrayList<>(stats.subList(0, limit)) : stats;
+    }
+
+    @Override
+    public List<ConnectionStats> findTopConnections(String stat, int limit) {
+        return getConnectionStats(ConnectionStats.Stat.valueOf(stat).descending(), limit);
+    }
+
+    @Override
+    public int getNumOfQueuedRequests() {
+        return worker == null ? 0 : worker.getNumOfQueuedRequests();
+    }
+
+    @Override
+    public int getNumOfInFlightSyncRequests() {
+        return context.getSyncManager().getNumOfInFlightRequests();
+    }
+
+    @Override
+    public long getNumOfContentBufferExpansions() {
+        return context.getNumOfContentBufferExpansions();
+    }
+
+    @Override
+    public long getNumOfSlowCommands() {
+        return context.getStallDetector().getNumOfSlowCommands();
+    }
+
+    @Override
+    public long getNumOfSlowConsumers() {
+        return context.getStallDetector().getNumOfSlowConsumers();
+    }
+
+    @Override
+    public long getNumOfSlowLoops() {
+        return context.getStallDetector().getNumOfSlowLoops();
+    }
+
+    @Override
+    public long getSlowCommandThresholdMillis() {
+        return context.getStallDetector().getSlowCommandThresholdMillis();
+    }
+
+    @Override
+    public long getSlowConsumerThresholdMillis() {
+        return context.getStallDetector().getSlowConsumerThresholdMillis();
+    }
+
+    @Override
+    public long getSlowLoopThresholdMillis() {
+        return context.getStallDetector().getSlowLoopThresholdMillis();
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return isRunning;
+    }
+
+    @Override
+    public String getName() {
+        return context.getName();
+    }
+
+    @Override
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public int getNumOfWorkers() {
+        return numOfWorkers;
+    }
+
+    @Override
+    public int getNumOfProcessors() {
+        return numOfProcessors;
+    }
+
+    @Override
+    public boolean isSslEnabled() {
+        return context.getSslContext().isEnabled();
+    }
+
+    @Override
+    public int getCompressionThresholdBytes() {
+        return context.getCompressionThresholdBytes();
+    }
+
+    @Override
+    public int getHeartbeatIntervalSeconds() {
+        return context.getHeartbeatIntervalSeconds();
+    }
+
+    @Override
+    public int getDefaultContentBufferSize() {
+        return context.getDefaultContentBufferSize();
+    }
+
+    @Override
+    public long getWriteQueueHighWaterMark() {
+        return context.getWriteQueueHighWaterMark();
+    }
+
+    @Override
+    public int getStreamFragmentSize() {
+        return context.getStreamFragmentSize();
+    }
+
+    @Override
+    public int getMaxBufferedStreamFragments() {
+        return context.getMaxBufferedStreamFragments();
+    }
+
+    public void broadcastCommand(String id, Object body) {
+        broadcastCommand(id, body, connection -> true);
+    }
+
+    public void broadcastCommand(String id, Object body, Predicate<Connection> filter) {
+        Frame frame = Frame.of(context.getCodec(), id, null, body);
+        for (Connection connection : connectionRegistry.getConnections()) {
+            if (connection.isOpen() && filter.test(connection)) {
+                connection.writeFrame(frame);
+            }
+        }
     }
 
     public void setName(String name) {
@@ -78,6 +301,16 @@ public class SocketServer {
         this.port = port;
     }
 
+    // The server is exposed as an MBean by default, see SocketServerMXBean.
+    public void setJmxEnabled(boolean isJmxEnabled) {
+        this.isJmxEnabled = isJmxEnabled;
+    }
+
+    // Listens on the unix domain socket instead of host and port. Requires Java 16 or later.
+    public void setUnixDomainSocketPath(String unixDomainSocketPath) {
+        this.unixDomainSocketPath = unixDomainSocketPath;
+    }
+
     public void setNumOfWorkers(int numOfWorkers) {
         this.numOfWorkers = numOfWorkers;
     }
@@ -86,10 +319,22 @@ public class SocketServer {
         this.numOfProcessors = numOfProcessors;
     }
 
+    @Override
     public void setDefaultContentBufferSize(int defaultContentBufferSize) {
         this.context.setDefaultContentBufferSize(defaultContentBufferSize);
     }
 
+    @Override
+    public void setWriteQueueHighWaterMark(long writeQueueHighWaterMark) {
+        this.context.setWriteQueueHighWaterMark(writeQueueHighWaterMark);
+    }
+
+    // Command bodies and results are handed over to loopback clients without serialization.
+    // They must not be modified after being sent since both sides share the same instance.
+    public void setLoopbackSerializationSkipped(boolean loopbackSerializationSkipped) {
+        this.context.setLoopbackSerializationSkipped(loopbackSerializationSkipped);
+    }
+
     public void registerCommand(Command command) {
         this.context.getCommandRegistry().registerCommand(command);
     }
@@ -98,6 +343,14 @@ public class SocketServer {
         this.context.getCommandRegistry().registerSyncCommand(syncCommand);
     }
 
+    public void registerStreamCommand(StreamCommand streamCommand) {
+        this.context.getCommandRegistry().registerStreamCommand(streamCommand);
+    }
+
+    public void registerFileCommand(FileCommand fileCommand) {
+        this.context.getCommandRegistry().registerFileCommand(fileCommand);
+    }
+
     public void registerListener(CommandListener listener) {
         this.context.getListenerRegistry().registerListener(listener);
     }
@@ -106,18 +359,137 @@ public class SocketServer {
         this.context.setCodec(codec);
     }
 
+    // Messages larger than this are compressed if the peer supports it. A negative value (default) disables it.
+    public void setCompressionThresholdBytes(int compressionThresholdBytes) {
+        this.context.setCompressionThresholdBytes(compressionThresholdBytes);
+    }
+
+    // Compressed frames which claim to be larger than this when decompressed are rejected before allocating
+    public void setMaxDecompressedBytes(int maxDecompressedBytes) {
+        this.context.setMaxDecompressedBytes(maxDecompressedBytes);
+    }
+
+    // Deflate is registered by default. Compressors registered later are preferred.
+    public void registerCompressor(Compressor compressor) {
+        this.context.registerCompressor(compressor);
+    }
+
+    // Streams are sent in fragments of this size, and a receiver buffers up to the max number of them per stream.
+    @Override
+    public void setStreamFragmentSize(int streamFragmentSize) {
+        this.context.setStreamFragmentSize(streamFragmentSize);
+    }
+
+    // Measurements are not recorded by default. It must be set before starting.
+    public void setMetrics(Metrics metrics) {
+        this.context.setMetrics(metrics);
+    }
+
+    // Command handlers which take longer than this are logged and counted (default 1s). A negative value disables it.
+    @Override
+    public void setSlowCommandThresholdMillis(long slowCommandThresholdMillis) {
+        this.context.getStallDetector().setSlowCommandThresholdMillis(slowCommandThresholdMillis);
+    }
+
+    // Connections whose write queue isn't drained for longer than this are logged and counted (default 10s).
+    @Override
+    public void setSlowConsumerThresholdMillis(long slowConsumerThresholdMillis) {
+        this.context.getStallDetector().setSlowConsumerThresholdMillis(slowConsumerThresholdMillis);
+    }
+
+    // IO loop iterations which take longer than this except waiting in select are logged and counted (default 500ms).
+    @Override
+    public void setSlowLoopThresholdMillis(long slowLoopThresholdMillis) {
+        this.context.getStallDetector().setSlowLoopThresholdMillis(slowLoopThresholdMillis);
+    }
+
+    // Tracing is disabled by default. It must be set before starting, see TraceInterceptor.
+    public void setTraceInterceptor(TraceInterceptor traceInterceptor) {
+        this.context.setTraceInterceptor(traceInterceptor);
+    }
+
+    @Override
+    public void setMaxBufferedStreamFragments(int maxBufferedStreamFragments) {
+        this.context.setMaxBufferedStreamFragments(maxBufferedStreamFragments);
+    }
+
+    @Override
     public void setHeartbeatIntervalSeconds(int heartbeatIntervalSeconds) {
         this.context.setHeartbeatIntervalSeconds(heartbeatIntervalSeconds);
     }
 
+    // Threads which run the delegated tasks of TLS handshakes (e.g. key exchange) out of the IO loops.
+    public void setNumOfHandshakeThreads(int numOfHandshakeThreads) {
+        this.context.setNumOfHandshakeThreads(numOfHandshakeThreads);
+    }
+
+    // Session tickets (RFC 5077) let servers resume sessions without keeping them in the cache.
+    // They are enabled by default on Java 14 or later. On Java 13, start the JVM with the system properties
+    // "jdk.tls.client.enableSessionTicketExtension=true" and "jdk.tls.server.enableSessionTicketExtension=true".
     public void setSslContext(SSLContext sslContext) {
         this.context.getSslContext().setSslContext(sslContext);
     }
 
+    // Limits TLS handshakes in progress at once, 0 means unlimited.
+    // Accepted sockets wait for a slot up to the admission timeout, then they are closed.
+    public void setMaxConcurrentSslHandshakes(int maxConcurrentSslHandshakes) {
+        this.context.getSslContext().setMaxConcurrentHandshakes(maxConcurrentSslHandshakes);
+    }
+
+    public void setSslHandshakeAdmissionTimeoutMillis(long sslHandshakeAdmissionTimeoutMillis) {
+        this.context.getSslContext().setHandshakeAdmissionTimeoutMillis(sslHandshakeAdmissionTimeoutMillis);
+    }
+
+    // Applied to the session context of the SSLContext, which is left as it is unless these are called
+    public void setSslSessionCacheSize(int sslSessionCacheSize) {
+        this.context.getSslContext().setSessionCacheSize(sslSessionCacheSize);
+    }
+
+    public void setSslSessionTimeoutSeconds(int sslSessionTimeoutSeconds) {
+        this.context.getSslContext().setSessionTimeoutSeconds(sslSessionTimeoutSeconds);
+    }
+
+    public long getNumOfFullSslHandshakes() {
+        return this.context.getSslContext().getNumOfFullHandshakes();
+    }
+
+    public long getNumOfResumedSslHandshakes() {
+        return this.context.getSslContext().getNumOfResumedHandshakes();
+    }
+
+    public long getNumOfFailedSslHandshakes() {
+        return this.context.getSslContext().getNumOfFailedHandshakes();
+    }
+
+    public Histogram getSslHandshakeDurationHistogram() {
+        return this.context.getSslContext().getHandshakeDurations();
+    }
+
+    public long getNumOfRefusedSslHandshakes() {
+        return this.context.getSslContext().getNumOfRefusedHandshakes();
+    }
+
     public void enableSslClientAuth() {
         this.context.getSslContext().enableSslClientAuth();
     }
 
+    private ServerSocketChannel openServerChannel() throws IOException {
+        if (unixDomainSocketPath != null) {
+            // A socket file left by a previous process prevents binding
+            Files.deleteIfExists(Paths.get(unixDomainSocketPath));
+            ServerSocketChannel channel = UnixDomainSockets.openServerSocketChannel();
+            channel.configureBlocking(true);
+            channel.bind(UnixDomainSockets.address(unixDomainSocketPath));
+            return channel;
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.configureBlocking(true);
+        channel.socket().setSoTimeout(0);
+        channel.socket().setReuseAddress(true);
+        channel.socket().bind(new InetSocketAddress(host, port));
+        return channel;
+    }
+
     private void shutdownHook() {
         try {
             log.info("Shutdown detected. Stopping server..");
@@ -0,0 +1,79 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.List;
+import java.util.Map;
+
+// Exposed as "com.github.kamatama41.nsocket:type=SocketServer,name=<name>" while the server is running.
+// Writable attributes are safe to change while running.
+public interface SocketServerMXBean {
+    String getName();
+
+    boolean isRunning();
+
+    String getHost();
+
+    int getPort();
+
+    int getNumOfWorkers();
+
+    int getNumOfProcessors();
+
+    boolean isSslEnabled();
+
+    int getNumOfConnections();
+
+    Map<String, Integer> getNumOfConnectionsPerProcessor();
+
+    List<ProcessorStats> getProcessorStats();
+
+    // Connections with the largest values of the stat, which is a name of ConnectionStats.Stat (e.g. SENT_BYTES).
+    List<ConnectionStats> findTopConnections(String stat, int limit);
+
+    // Requests waiting for the worker threads
+    int getNumOfQueuedRequests();
+
+    // Sync commands sent from this server waiting for their results
+    int getNumOfInFlightSyncRequests();
+
+    long getNumOfContentBufferExpansions();
+
+    long getNumOfSlowCommands();
+
+    long getNumOfSlowConsumers();
+
+    long getNumOfSlowLoops();
+
+    int getCompressionThresholdBytes();
+
+    int getHeartbeatIntervalSeconds();
+
+    void setHeartbeatIntervalSeconds(int heartbeatIntervalSeconds);
+
+    int getDefaultContentBufferSize();
+
+    void setDefaultContentBufferSize(int defaultContentBufferSize);
+
+    long getWriteQueueHighWaterMark();
+
+    void setWriteQueueHighWaterMark(long writeQueueHighWaterMark);
+
+    int getStreamFragmentSize();
+
+    void setStreamFragmentSize(int streamFragmentSize);
+
+    int getMaxBufferedStreamFragments();
+
+    void setMaxBufferedStreamFragments(int maxBufferedStreamFragments);
+
+    long getSlowCommandThresholdMillis();
+
+    void setSlowCommandThresholdMillis(long slowCommandThresholdMillis);
+
+    long getSlowConsumerThresholdMillis();
+
+    void setSlowConsumerThresholdMillis(long slowConsumerThresholdMillis);
+
+    long getSlowLoopThresholdMillis();
+
+    void setSlowLoopThresholdMillis(long slowLoopThresholdMillis);
+}
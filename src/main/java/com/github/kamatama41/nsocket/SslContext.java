@@ -2,16 +2,54 @@ package com.github.kamatama41.nsocket;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 class SslContext {
+    private static final int MAX_ESTABLISHED_SESSIONS = 20 * 1024;
     private SSLContext sslContext;
     private boolean useClientMode;
     private boolean needClientAuth;
+    // Null unless they are set explicitly, so that the session context of the given SSLContext is left as it is
+    private Integer sessionCacheSize;
+    private Integer sessionTimeoutSeconds;
+    // IDs and creation times of sessions established by earlier handshakes, in least recently established order
+    private final Map<Object, Boolean> establishedSessions;
+    private Semaphore handshakePermits;
+    private long handshakeAdmissionTimeoutMillis;
+    private final AtomicLong numOfFullHandshakes;
+    private final AtomicLong numOfResumedHandshakes;
+    private final AtomicLong numOfFailedHandshakes;
+    private final AtomicLong numOfRefusedHandshakes;
+    private final Histogram handshakeDurations;
 
     SslContext(boolean isServer) {
         this.sslContext = null;
         this.useClientMode = !isServer;
         this.needClientAuth = false;
+        this.sessionCacheSize = null;
+        this.sessionTimeoutSeconds = null;
+        this.establishedSessions = new LinkedHashMap<Object, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Boolean> eldest) {
+                return size() > MAX_ESTABLISHED_SESSIONS * 2;
+            }
+        };
+        this.numOfFullHandshakes = new AtomicLong(0L);
+        this.numOfResumedHandshakes = new AtomicLong(0L);
+        this.numOfFailedHandshakes = new AtomicLong(0L);
+        this.numOfRefusedHandshakes = new AtomicLong(0L);
+        this.handshakePermits = null;
+        this.handshakeAdmissionTimeoutMillis = 10 * 1000L;
+        this.handshakeDurations = new Histogram();
     }
 
     boolean isEnabled() {
@@ -20,16 +58,125 @@ class SslContext {
 
     void setSslContext(SSLContext sslContext) {
         this.sslContext = sslContext;
+        configureSessionContext();
     }
 
     void enableSslClientAuth() {
         this.needClientAuth = true;
     }
 
-    SSLEngine createSSLEngine() {
-        SSLEngine sslEngine = sslContext.createSSLEngine();
+    void setSessionCacheSize(int sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+        configureSessionContext();
+    }
+
+    void setSessionTimeoutSeconds(int sessionTimeoutSeconds) {
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        configureSessionContext();
+    }
+
+    // Sessions are cached per peer host and port, so an engine must know its peer to resume a session.
+    SSLEngine createSSLEngine(SocketAddress peer) {
+        SSLEngine sslEngine;
+        if (peer instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) peer;
+            sslEngine = sslContext.createSSLEngine(address.getHostString(), address.getPort());
+        } else {
+            sslEngine = sslContext.createSSLEngine();
+        }
         sslEngine.setUseClientMode(useClientMode);
         sslEngine.setNeedClientAuth(needClientAuth);
         return sslEngine;
     }
+
+    // 0 means unlimited. Must be set before the server starts.
+    void setMaxConcurrentHandshakes(int maxConcurrentHandshakes) {
+        this.handshakePermits = maxConcurrentHandshakes > 0 ? new Semaphore(maxConcurrentHandshakes) : null;
+    }
+
+    void setHandshakeAdmissionTimeoutMillis(long handshakeAdmissionTimeoutMillis) {
+        this.handshakeAdmissionTimeoutMillis = handshakeAdmissionTimeoutMillis;
+    }
+
+    // Waits until the number of in-progress handshakes goes under the limit.
+    // Returns false if it doesn't within the admission timeout.
+    boolean acquireHandshakePermit() throws InterruptedException {
+        if (handshakePermits == null) {
+            return true;
+        }
+        if (handshakePermits.tryAcquire(handshakeAdmissionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        numOfRefusedHandshakes.incrementAndGet();
+        return false;
+    }
+
+    void releaseHandshakePermit() {
+        if (handshakePermits != null) {
+            handshakePermits.release();
+        }
+    }
+
+    // A handshake is resumed if its session has been established by an earlier one. The JDK keeps the session ID
+    // on resumption up to TLS 1.2, but TLS 1.3 issues a new ID and keeps only the creation time of the original.
+    // So a session created before the handshake started with the creation time of an established one is resumed
+    // too, which a new session can never be as it is created during the handshake.
+    void recordHandshakeSucceeded(SSLSession session, long handshakeStartTime, long durationNanos) {
+        byte[] id = session.getId();
+        Object idKey = id == null || id.length == 0 ? null : ByteBuffer.wrap(id);
+        Long creationTimeKey = session.getCreationTime();
+        boolean isResumed;
+        synchronized (establishedSessions) {
+            isResumed = idKey != null && establishedSessions.containsKey(idKey) ||
+                    creationTimeKey < handshakeStartTime && establishedSessions.containsKey(creationTimeKey);
+            if (idKey != null) {
+                establishedSessions.put(idKey, Boolean.TRUE);
+            }
+            establishedSessions.put(creationTimeKey, Boolean.TRUE);
+        }
+        if (isResumed) {
+            numOfResumedHandshakes.incrementAndGet();
+        } else {
+            numOfFullHandshakes.incrementAndGet();
+        }
+        handshakeDurations.record(durationNanos);
+    }
+
+    void recordHandshakeFailed() {
+        numOfFailedHandshakes.incrementAndGet();
+    }
+
+    long getNumOfFullHandshakes() {
+        return numOfFullHandshakes.get();
+    }
+
+    long getNumOfResumedHandshakes() {
+        return numOfResumedHandshakes.get();
+    }
+
+    long getNumOfFailedHandshakes() {
+        return numOfFailedHandshakes.get();
+    }
+
+    long getNumOfRefusedHandshakes() {
+        return numOfRefusedHandshakes.get();
+    }
+
+    Histogram getHandshakeDurations() {
+        return handshakeDurations;
+    }
+
+    private void configureSessionContext() {
+        if (sslContext == null) {
+            return;
+        }
+        SSLSessionContext sessionContext = useClientMode ?
+                sslContext.getClientSessionContext() : sslContext.getServerSessionContext();
+        if (sessionCacheSize != null) {
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+        }
+        if (sessionTimeoutSeconds != null) {
+            sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+        }
+    }
 }
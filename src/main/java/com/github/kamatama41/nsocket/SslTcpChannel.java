@@ -2,90 +2,185 @@ package com.github.kamatama41.nsocket;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
-import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLSession;
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+// Wrapping and unwrapping run only on the thread of the belonging loop.
 class SslTcpChannel extends PlaintextTcpChannel {
+    // TLS records wrapped ahead of being written to the socket
+    private static final int MAX_OUTBOUND_RECORDS = 4;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    private final SslContext sslContext;
     private final SSLEngine sslEngine;
+    private final int packetBufferSize;
+    private final int applicationBufferSize;
+    // Taken from the pool of the loop while they have data, null while the connection is idle
     private ByteBuffer inboundBuffer;
-    private final Queue<ByteBuffer> outboundBuffers;
-    private final ByteBuffer unwrapBuffer;
-    private final ByteBuffer wrapBuffer;
-    private final Object outboundLock = new Object();
+    private ByteBuffer outboundBuffer;
+    private ByteBuffer unwrapBuffer;
+    // Written only by the loop, so it's volatile just to be read by others
+    private volatile int bufferCapacity;
+    private Connection connection;
+    private boolean isRunningHandshakeTasks;
+    private boolean isBufferedDeliveryScheduled;
+    private boolean isInboundUnderflow;
+    private long handshakeStartTime;
+    private long handshakeStartNanos;
+    private final AtomicBoolean isHandshakeEnded;
 
-    SslTcpChannel(SocketChannel channel, IOProcessor.Loop belongingTo, Context context) {
+    SslTcpChannel(SocketChannel channel, SocketAddress remote, IOProcessor.Loop belongingTo, Context context) {
         super(channel, belongingTo);
-        this.sslEngine = context.getSslContext().createSSLEngine();
+        this.sslContext = context.getSslContext();
+        this.sslEngine = sslContext.createSSLEngine(remote);
 
         SSLSession session = sslEngine.getSession();
-        int applicationBufferSize = session.getApplicationBufferSize();
-        this.inboundBuffer = ByteBuffer.allocate(applicationBufferSize);
-        this.unwrapBuffer = ByteBuffer.allocate(applicationBufferSize);
-        this.outboundBuffers = new ConcurrentLinkedQueue<>();
-        this.wrapBuffer = ByteBuffer.allocate(0);
+        this.packetBufferSize = session.getPacketBufferSize();
+        this.applicationBufferSize = session.getApplicationBufferSize();
+        this.isRunningHandshakeTasks = false;
+        this.isHandshakeEnded = new AtomicBoolean(false);
     }
 
     @Override
-    public void finishConnect(Connection connection) throws IOException {
-        super.finishConnect(connection);
+    protected void doFinishConnect(Connection connection) throws IOException {
+        super.doFinishConnect(connection);
+        this.connection = connection;
         beginHandshake();
     }
 
     @Override
     protected void doRegister(Connection connection) throws IOException {
         super.doRegister(connection);
+        this.connection = connection;
         beginHandshake();
     }
 
     @Override
     public int read(ByteBuffer dst) throws IOException {
-        int initialPosition = dst.position();
-        int read = unwrap(dst);
-        if (read == -1) {
+        try {
+            int initialPosition = dst.position();
+            boolean isClosed = unwrap(dst) == -1;
+            int read = dst.position() - initialPosition;
+            if (isClosed && read == 0) {
+                return -1;
+            }
+            if (hasBufferedInbound()) {
+                scheduleBufferedDelivery();
+            }
             return read;
+        } finally {
+            releaseDrainedBuffers();
         }
-        return dst.position() - initialPosition;
     }
 
     @Override
     public int write(ByteBuffer src) throws IOException {
-        return wrap(src);
+        try {
+            return wrap(src);
+        } finally {
+            releaseDrainedBuffers();
+        }
+    }
+
+    // The file has to be encrypted, so it is copied via the transfer buffer of the loop.
+    // Bytes which are not wrapped this time are read from the file again on the next call.
+    @Override
+    public long transferFrom(FileChannel file, long position, long count) throws IOException {
+        ByteBuffer buffer = getBelongingTo().getTransferBuffer();
+        buffer.clear();
+        if (count < buffer.capacity()) {
+            buffer.limit((int) count);
+        }
+        int read = file.read(buffer, position);
+        if (read <= 0) {
+            return 0;
+        }
+        buffer.flip();
+        try {
+            wrap(buffer);
+        } finally {
+            releaseDrainedBuffers();
+        }
+        // wrap() returns the bytes written to the socket, not those consumed from the buffer
+        return buffer.position();
+    }
+
+    // Returns false while wrapped records are still waiting for the socket to be writable
+    @Override
+    public boolean flush() throws IOException {
+        try {
+            flushOutbound();
+            return outboundBuffer == null || outboundBuffer.position() == 0;
+        } finally {
+            releaseDrainedBuffers();
+        }
     }
 
+    // Buffers aren't returned to the pool, which only the loop may use while this can be called by any thread.
     @Override
     public void close() throws IOException {
         super.close();
         sslEngine.closeOutbound();
+        // Connections can be closed by other threads
+        if (endHandshake()) {
+            sslContext.recordHandshakeFailed();
+        }
     }
 
+    // Returns -1 if the peer has closed
     private int unwrap(ByteBuffer dst) throws IOException {
         // Read from unwrapBuffer first
-        int totalUnwrapped = 0;
-        if (unwrapBuffer.position() != 0) {
-            unwrapBuffer.flip();
-            while (unwrapBuffer.hasRemaining() && dst.hasRemaining()) {
-                dst.put(unwrapBuffer.get());
-                totalUnwrapped++;
-            }
-            unwrapBuffer.compact();
+        transferUnwrapped(dst);
+        if (!dst.hasRemaining()) {
+            return 0;
         }
+        acquireBuffers();
 
-        int unwrapped, wrapped;
+        // Keep going while records received during delegated tasks are still buffered
+        int read;
+        boolean canUnwrapMore, madeProgress;
         do {
-            totalUnwrapped += unwrapped = doUnwrap(dst);
-            wrapped = doWrap(wrapBuffer);
-        } while (unwrapped > 0 || wrapped > 0 && (!outboundBuffers.isEmpty() && inboundBuffer.hasRemaining()));
+            // The engine needs room for a whole record, so a smaller dst is filled through unwrapBuffer
+            read = doUnwrap(dst.remaining() < unwrapBuffer.capacity() ? unwrapBuffer : dst);
+            if (read == -1) {
+                break;
+            }
+            int wrapped = doWrap(EMPTY_BUFFER);
+            // Bytes left in unwrapBuffer go to dst first, so nothing more is unwrapped until it's drained
+            canUnwrapMore = unwrapBuffer.position() == 0 && dst.hasRemaining();
+            // A handshake message just wrapped may let the engine unwrap records which are already in inboundBuffer,
+            // or which the peer sends in reply once it's flushed (if inboundBuffer has room for them)
+            boolean hasPendingRecord = inboundBuffer.position() > 0 ||
+                    outboundBuffer.position() != 0 && inboundBuffer.hasRemaining();
+            madeProgress = read > 0 || wrapped > 0 && hasPendingRecord;
+        } while (canUnwrapMore && madeProgress);
 
-        return totalUnwrapped;
+        transferUnwrapped(dst);
+        return read == -1 ? -1 : 0;
+    }
+
+    private void transferUnwrapped(ByteBuffer dst) {
+        if (unwrapBuffer == null || unwrapBuffer.position() == 0) {
+            return;
+        }
+        unwrapBuffer.flip();
+        int limit = unwrapBuffer.limit();
+        unwrapBuffer.limit(unwrapBuffer.position() + Math.min(unwrapBuffer.remaining(), dst.remaining()));
+        dst.put(unwrapBuffer);
+        unwrapBuffer.limit(limit);
+        unwrapBuffer.compact();
     }
 
     private int doUnwrap(ByteBuffer dst) throws IOException {
+        int initialPosition = dst.position();
         int totalRead = 0;
         loop:
         do {
@@ -96,6 +191,9 @@ class SslTcpChannel extends PlaintextTcpChannel {
                 if (read == -1) {
                     return read;
                 }
+                if (read > 0) {
+                    isInboundUnderflow = false;
+                }
             } while (inboundBuffer.hasRemaining() && read > 0);
 
             inboundBuffer.flip();
@@ -115,19 +213,11 @@ class SslTcpChannel extends PlaintextTcpChannel {
                                 prepareWrapping();
                                 break loop;
                             case NEED_TASK:
-                                HandshakeStatus taskResult = runHandshakeTasks();
-                                switch (taskResult) {
-                                    case NEED_WRAP:
-                                        prepareWrapping();
-                                        break loop;
-                                    case NEED_UNWRAP:
-                                        break;
-                                    default:
-                                        throw new IllegalStateException("Unexpected handshake status: " + taskResult);
-                                }
-                                break;
+                                runHandshakeTasks();
+                                break loop;
                             case FINISHED:
                                 log.debug("unwrap: Handshaking finished.");
+                                onHandshakeFinished();
                             case NEED_UNWRAP:
                             case NOT_HANDSHAKING:
                                 break;
@@ -136,10 +226,17 @@ class SslTcpChannel extends PlaintextTcpChannel {
                         }
                         break;
                     case BUFFER_OVERFLOW:
+                        if (dst.position() > initialPosition || dst == unwrapBuffer && dst.position() > 0) {
+                            // The rest of records is unwrapped once dst is consumed
+                            break loop;
+                        }
                         throw new InsufficientInboundBufferException();
                     case CLOSED:
                         return totalRead == 0 ? -1 : totalRead;
-                    case BUFFER_UNDERFLOW:  // should not happen because sufficient buffer size is allocated
+                    case BUFFER_UNDERFLOW:
+                        // Only a part of a record has arrived
+                        isInboundUnderflow = true;
+                        break loop;
                     default:
                         throw new IllegalStateException("Unexpected status: " + result.getStatus());
                 }
@@ -152,33 +249,110 @@ class SslTcpChannel extends PlaintextTcpChannel {
     }
 
     private int wrap(ByteBuffer src) throws IOException {
+        acquireBuffers();
         int wrapped = doWrap(src);
-        try {
-            doUnwrap(unwrapBuffer);
-        } catch (InsufficientInboundBufferException e) {
-            log.warn("Unexpectedly failed to unwrap into unwrapBuffer.", e);
+        if (unwrapBuffer.position() == 0) {
+            try {
+                doUnwrap(unwrapBuffer);
+            } catch (InsufficientInboundBufferException e) {
+                log.warn("Unexpectedly failed to unwrap into unwrapBuffer.", e);
+            }
+        }
+        if (hasBufferedInbound()) {
+            scheduleBufferedDelivery();
         }
         return wrapped;
     }
 
+    // Whether data which has already been read from the socket is waiting to be delivered.
+    // A partial record can't be unwrapped until the rest arrives.
+    private boolean hasBufferedInbound() {
+        return unwrapBuffer != null && unwrapBuffer.position() != 0 ||
+                inboundBuffer != null && inboundBuffer.position() != 0 && !isInboundUnderflow;
+    }
+
+    // Network buffers are direct so that socket IO doesn't copy them into temporary direct buffers.
+    private void acquireBuffers() {
+        BufferPool pool = getBelongingTo().getBufferPool();
+        if (inboundBuffer == null) {
+            inboundBuffer = pool.acquire(packetBufferSize, true);
+        }
+        if (outboundBuffer == null) {
+            outboundBuffer = pool.acquire(packetBufferSize * MAX_OUTBOUND_RECORDS, true);
+        }
+        if (unwrapBuffer == null) {
+            unwrapBuffer = pool.acquire(applicationBufferSize, false);
+        }
+        updateBufferCapacity();
+    }
+
+    // A partial record in inboundBuffer is kept until the rest of it arrives
+    private void releaseDrainedBuffers() {
+        BufferPool pool = getBelongingTo().getBufferPool();
+        if (inboundBuffer != null && inboundBuffer.position() == 0) {
+            pool.release(inboundBuffer);
+            inboundBuffer = null;
+        }
+        if (outboundBuffer != null && outboundBuffer.position() == 0) {
+            pool.release(outboundBuffer);
+            outboundBuffer = null;
+        }
+        if (unwrapBuffer != null && unwrapBuffer.position() == 0) {
+            pool.release(unwrapBuffer);
+            unwrapBuffer = null;
+        }
+        updateBufferCapacity();
+    }
+
+    private void updateBufferCapacity() {
+        bufferCapacity = (inboundBuffer == null ? 0 : inboundBuffer.capacity()) +
+                (outboundBuffer == null ? 0 : outboundBuffer.capacity()) +
+                (unwrapBuffer == null ? 0 : unwrapBuffer.capacity());
+    }
+
+    @Override
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    // The selector won't notify data which has already been read from the socket,
+    // so let the connection read it on the loop instead.
+    // While delegated tasks are running, it is read when the handshake resumes.
+    private void scheduleBufferedDelivery() {
+        if (isBufferedDeliveryScheduled || isRunningHandshakeTasks) {
+            return;
+        }
+        isBufferedDeliveryScheduled = true;
+        getBelongingTo().addEvent(() -> {
+            isBufferedDeliveryScheduled = false;
+            if (connection == null || !isOpen() || !hasBufferedInbound()) {
+                return;
+            }
+            try {
+                connection.onReadable();
+            } catch (Exception e) {
+                log.warn("Failed to read buffered data.", e);
+                connection.close();
+            }
+        });
+    }
+
     private int doWrap(ByteBuffer src) throws IOException {
         // Send data if wrapped data exists
-        int totalWritten = flush();
+        int totalWritten = flushOutbound();
 
-        // Wrap application data (src) and send it.
+        // Wrap application data (src) into outboundBuffer and send it.
         loop:
         while (true) {
-            SSLEngineResult result;
-            synchronized (outboundLock) {
-                ByteBuffer outboundBuffer = newPacketBuffer();
-                result = sslEngine.wrap(src, outboundBuffer);
-                logSSLEngineResult("wrap:", result);
-                if (result.bytesProduced() > 0) {
-                    outboundBuffer.flip();
-                    outboundBuffers.add(outboundBuffer);
+            if (outboundBuffer.remaining() < packetBufferSize) {
+                totalWritten += flushOutbound();
+                if (outboundBuffer.remaining() < packetBufferSize) {
+                    // The socket is not writable for now. The rest of src is wrapped when it becomes writable.
+                    break;
                 }
             }
-            totalWritten += flush();
+            SSLEngineResult result = sslEngine.wrap(src, outboundBuffer);
+            logSSLEngineResult("wrap:", result);
 
             switch (result.getStatus()) {
                 case OK:
@@ -187,17 +361,8 @@ class SslTcpChannel extends PlaintextTcpChannel {
                             prepareUnwrapping();
                             break loop;
                         case NEED_TASK:
-                            HandshakeStatus taskResult = runHandshakeTasks();
-                            switch (taskResult) {
-                                case NEED_UNWRAP:
-                                    prepareUnwrapping();
-                                    break loop;
-                                case NEED_WRAP:
-                                    break;
-                                default:
-                                    throw new IllegalStateException("Unexpected handshake status: " + taskResult);
-                            }
-                            break;
+                            runHandshakeTasks();
+                            break loop;
                         case NOT_HANDSHAKING:
                             if (src.hasRemaining()) {
                                 break;
@@ -207,6 +372,7 @@ class SslTcpChannel extends PlaintextTcpChannel {
                             break;
                         case FINISHED:
                             log.debug("wrap: Handshaking finished.");
+                            onHandshakeFinished();
                             break;
                         default:
                             throw new IllegalStateException("Unexpected handshake status: " + result.getHandshakeStatus());
@@ -220,46 +386,119 @@ class SslTcpChannel extends PlaintextTcpChannel {
                     throw new IllegalStateException("Unexpected status: " + result.getStatus());
             }
         }
+        totalWritten += flushOutbound();
+        if (outboundBuffer.position() != 0) {
+            enableInterest(SelectionKey.OP_WRITE);
+        }
         return totalWritten;
     }
 
-    private HandshakeStatus runHandshakeTasks() {
-        log.trace("Running handshake tasks..");
+    // Delegated tasks (e.g. key exchange) are expensive, so they run on the handshake executor
+    // instead of blocking other connections on the loop. The channel stops watching IO until they complete.
+    private void runHandshakeTasks() throws IOException {
+        overrideInterest(0);
+        if (isRunningHandshakeTasks) {
+            return;
+        }
+        List<Runnable> tasks = new ArrayList<>();
         Runnable task;
         while ((task = sslEngine.getDelegatedTask()) != null) {
-            task.run();
+            tasks.add(task);
+        }
+        log.trace("Running {} handshake tasks..", tasks.size());
+        isRunningHandshakeTasks = true;
+        IOProcessor.Loop belongingTo = getBelongingTo();
+        try {
+            belongingTo.getHandshakeExecutor().execute(() -> {
+                try {
+                    for (Runnable t : tasks) {
+                        t.run();
+                    }
+                } finally {
+                    belongingTo.addEvent(this::resumeHandshake);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The processor is stopping, so the handshake can never complete and the connection is closed by the loop
+            isRunningHandshakeTasks = false;
+            throw new IOException("Handshake tasks were rejected since the processor is stopping.", e);
         }
-        HandshakeStatus status = sslEngine.getHandshakeStatus();
-        log.trace("Ran handshake tasks. Current status is {}", status);
-        return status;
     }
 
-    private int flush() throws IOException {
-        if (!isOpen()) {
-            return 0;
+    // Resumes unwrapping and wrapping on the loop once delegated tasks complete
+    private void resumeHandshake() throws IOException {
+        isRunningHandshakeTasks = false;
+        log.trace("Ran handshake tasks. Current status is {}", sslEngine.getHandshakeStatus());
+        if (connection == null || !isOpen()) {
+            return;
         }
-        int totalWritten = 0;
-        ByteBuffer buffer;
-        while ((buffer = outboundBuffers.peek()) != null) {
-            totalWritten += super.write(buffer);
-            if (buffer.remaining() != 0) {
-                break;
-            } else {
-                outboundBuffers.poll();
+        overrideInterest(SelectionKey.OP_READ);
+        try {
+            connection.onReadable();
+            if (!isRunningHandshakeTasks) {
+                connection.onWritable();
             }
+        } catch (Exception e) {
+            log.warn("Failed to resume handshaking.", e);
+            connection.close();
+        }
+    }
+
+    private int flushOutbound() throws IOException {
+        if (!isOpen() || outboundBuffer == null || outboundBuffer.position() == 0) {
+            return 0;
+        }
+        outboundBuffer.flip();
+        try {
+            int totalWritten = 0;
+            int written;
+            do {
+                totalWritten += written = super.write(outboundBuffer);
+            } while (outboundBuffer.hasRemaining() && written > 0);
+            return totalWritten;
+        } finally {
+            outboundBuffer.compact();
         }
-        return totalWritten;
     }
 
     private void beginHandshake() throws IOException {
         log.debug("Start handshaking..");
+        handshakeStartTime = System.currentTimeMillis();
+        handshakeStartNanos = System.nanoTime();
         sslEngine.beginHandshake();
-        doWrap(wrapBuffer);
-        doUnwrap(unwrapBuffer);
+        acquireBuffers();
+        try {
+            doWrap(EMPTY_BUFFER);
+            doUnwrap(unwrapBuffer);
+        } finally {
+            releaseDrainedBuffers();
+        }
+    }
+
+    // TLS 1.3 reports FINISHED again
+    // on post-handshake messages such as NewSessionTicket, so only the first one is counted.
+    private void onHandshakeFinished() {
+        if (!endHandshake()) {
+            return;
+        }
+        log.debug("Handshaking finished.");
+        sslContext.recordHandshakeSucceeded(sslEngine.getSession(), handshakeStartTime,
+                System.nanoTime() - handshakeStartNanos);
+    }
+
+    // Server side channels are opened after the acceptor acquires a handshake permit
+    private boolean endHandshake() {
+        if (!isHandshakeEnded.compareAndSet(false, true)) {
+            return false;
+        }
+        if (!sslEngine.getUseClientMode()) {
+            sslContext.releaseHandshakePermit();
+        }
+        return true;
     }
 
     private void prepareUnwrapping() {
-        if (outboundBuffers.isEmpty()) {
+        if (outboundBuffer == null || outboundBuffer.position() == 0) {
             overrideInterest(SelectionKey.OP_READ);
         } else {
             enableInterest(SelectionKey.OP_READ);
@@ -279,9 +518,5 @@ class SslTcpChannel extends PlaintextTcpChannel {
             );
         }
     }
-
-    private ByteBuffer newPacketBuffer() {
-        return ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
-    }
 }
 
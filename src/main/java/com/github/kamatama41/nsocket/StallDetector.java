@@ -0,0 +1,133 @@
+package com.github.kamatama41.nsocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Detects slow command handlers, connections whose write queue isn't drained (slow consumers) and slow IO loop
+// iterations. Each of them is counted, and logged as key=value pairs at most once a second per kind,
+// so that a stall which hits many requests doesn't flood the log. A negative threshold disables the kind.
+class StallDetector {
+    private static final Logger log = LoggerFactory.getLogger(StallDetector.class);
+    private static final long LOG_INTERVAL_MILLIS = 1000L;
+    private final Stall slowCommands;
+    private final Stall slowConsumers;
+    private final Stall slowLoops;
+
+    StallDetector() {
+        this.slowCommands = new Stall(1000L);
+        this.slowConsumers = new Stall(10 * 1000L);
+        this.slowLoops = new Stall(500L);
+    }
+
+    void onCommandHandled(String commandId, Connection connection, int size, long elapsedNanos) {
+        if (!slowCommands.isExceeded(elapsedNanos)) {
+            return;
+        }
+        long suppressed = slowCommands.record();
+        if (suppressed >= 0) {
+            log.warn("event=slow_command commandId={} connection={} requestBytes={} elapsedMillis={} thresholdMillis={} suppressed={}",
+                    commandId, connection, size, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                    slowCommands.thresholdMillis, suppressed);
+        }
+    }
+
+    boolean isSlowConsumerEnabled() {
+        return slowConsumers.thresholdMillis >= 0;
+    }
+
+    boolean isSlowConsumer(long stalledNanos) {
+        return slowConsumers.isExceeded(stalledNanos);
+    }
+
+    void onSlowConsumer(Connection connection, int queuedWrites, long queuedBytes, long stalledNanos) {
+        long suppressed = slowConsumers.record();
+        if (suppressed >= 0) {
+            log.warn("event=slow_consumer connection={} queuedWrites={} queuedBytes={} stalledMillis={} thresholdMillis={} suppressed={}",
+                    connection, queuedWrites, queuedBytes, TimeUnit.NANOSECONDS.toMillis(stalledNanos),
+                    slowConsumers.thresholdMillis, suppressed);
+        }
+    }
+
+    // Time blocked in select is not included in the elapsed time
+    void onLoopIteration(String loopName, long elapsedNanos, int events, int selectedKeys, int connections) {
+        if (!slowLoops.isExceeded(elapsedNanos)) {
+            return;
+        }
+        long suppressed = slowLoops.record();
+        if (suppressed >= 0) {
+            log.warn("event=slow_loop loop={} events={} selectedKeys={} connections={} elapsedMillis={} thresholdMillis={} suppressed={}",
+                    loopName, events, selectedKeys, connections, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                    slowLoops.thresholdMillis, suppressed);
+        }
+    }
+
+    long getSlowCommandThresholdMillis() {
+        return slowCommands.thresholdMillis;
+    }
+
+    void setSlowCommandThresholdMillis(long thresholdMillis) {
+        slowCommands.thresholdMillis = thresholdMillis;
+    }
+
+    long getSlowConsumerThresholdMillis() {
+        return slowConsumers.thresholdMillis;
+    }
+
+    void setSlowConsumerThresholdMillis(long thresholdMillis) {
+        slowConsumers.thresholdMillis = thresholdMillis;
+    }
+
+    long getSlowLoopThresholdMillis() {
+        return slowLoops.thresholdMillis;
+    }
+
+    void setSlowLoopThresholdMillis(long thresholdMillis) {
+        slowLoops.thresholdMillis = thresholdMillis;
+    }
+
+    long getNumOfSlowCommands() {
+        return slowCommands.count.get();
+    }
+
+    long getNumOfSlowConsumers() {
+        return slowConsumers.count.get();
+    }
+
+    long getNumOfSlowLoops() {
+        return slowLoops.count.get();
+    }
+
+    private static class Stall {
+        private volatile long thresholdMillis;
+        private final AtomicLong count;
+        private final AtomicLong nextLogTime;
+        private final AtomicLong suppressed;
+
+        Stall(long thresholdMillis) {
+            this.thresholdMillis = thresholdMillis;
+            this.count = new AtomicLong(0L);
+            this.nextLogTime = new AtomicLong(0L);
+            this.suppressed = new AtomicLong(0L);
+        }
+
+        boolean isExceeded(long elapsedNanos) {
+            long threshold = thresholdMillis;
+            return threshold >= 0 && elapsedNanos > TimeUnit.MILLISECONDS.toNanos(threshold);
+        }
+
+        // Returns the number of events suppressed since the last log, or -1 if this one should be suppressed.
+        long record() {
+            count.incrementAndGet();
+            long now = System.currentTimeMillis();
+            long next = nextLogTime.get();
+            if (now < next || !nextLogTime.compareAndSet(next, now + LOG_INTERVAL_MILLIS)) {
+                suppressed.incrementAndGet();
+                return -1L;
+            }
+            return suppressed.getAndSet(0L);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.github.kamatama41.nsocket;
+
+import java.io.InputStream;
+
+// A command which receives a stream sent by Connection#sendStream.
+// It runs on its own thread while the peer is still sending, so the stream never needs to fit in memory.
+// The stream is closed after this returns, and the rest of it is discarded.
+public interface StreamCommand extends CommandId {
+    void execute(InputStream stream, Connection connection) throws Exception;
+}
@@ -0,0 +1,20 @@
+package com.github.kamatama41.nsocket;
+
+class SubscribeCommand implements Command<String> {
+    static final String ID = "__subscribe";
+    private final TopicRegistry topicRegistry;
+
+    SubscribeCommand(TopicRegistry topicRegistry) {
+        this.topicRegistry = topicRegistry;
+    }
+
+    @Override
+    public void execute(String topic, Connection connection) {
+        topicRegistry.subscribe(topic, connection);
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
@@ -28,6 +28,11 @@ class SyncManager {
         return map.get(callId);
     }
 
+    // Sync calls waiting for their results
+    int getNumOfInFlightRequests() {
+        return map.size();
+    }
+
     private void removeRequest(Request request) {
         map.remove(request.getCallId(), request);
     }
@@ -19,8 +19,10 @@ class SyncResultCommand implements Command<SyncResultData> {
         SyncManager.Request request = null;
         try {
             request = syncManager.getRequest(resultData.getCallId());
-            Class<?> syncResultClass = commandRegistry.getSyncResultClass(resultData.getCommandId());
-            resultData.setResult(codec.decodeFromJson(resultData.getResultJson(), syncResultClass));
+            if (resultData.getResultJson() != null) {
+                Class<?> syncResultClass = commandRegistry.getSyncResultClass(resultData.getCommandId());
+                resultData.setResult(codec.decodeFromJson(resultData.getResultJson(), syncResultClass));
+            }
         } catch (Exception e) {
             resultData.setStatus(SyncResultData.Status.FAILED);
             resultData.setErrorMessage("Failed to decode from result JSON: " + e.getMessage());
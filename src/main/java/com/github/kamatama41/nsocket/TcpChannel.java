@@ -3,14 +3,42 @@ package com.github.kamatama41.nsocket;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 
 interface TcpChannel {
-    static TcpChannel open(SocketChannel channel, IOProcessor.Loop belongingTo, Context context) {
-        if (context.getSslContext().isEnabled()) {
-            return new SslTcpChannel(channel, belongingTo, context);
+    // The loop has counted the channel when it was selected, so the count is released if opening fails.
+    // Once opened, closing the channel releases it.
+    static TcpChannel open(SocketAddress remote, IOProcessor.Loop belongingTo, Context context) throws IOException {
+        if (remote instanceof LoopbackAddress) {
+            return new LoopbackTcpChannel(belongingTo, (LoopbackAddress) remote);
+        }
+        SocketChannel channel;
+        try {
+            channel = UnixDomainSockets.isUnixDomainAddress(remote) ?
+                    UnixDomainSockets.openSocketChannel() : SocketChannel.open();
+        } catch (IOException | RuntimeException e) {
+            belongingTo.releaseConnection();
+            throw e;
+        }
+        try {
+            return open(channel, remote, belongingTo, context);
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static TcpChannel open(SocketChannel channel, SocketAddress remote, IOProcessor.Loop belongingTo, Context context) {
+        try {
+            if (context.getSslContext().isEnabled()) {
+                return new SslTcpChannel(channel, remote, belongingTo, context);
+            }
+            return new PlaintextTcpChannel(channel, belongingTo);
+        } catch (RuntimeException e) {
+            belongingTo.releaseConnection();
+            throw e;
         }
-        return new PlaintextTcpChannel(channel, belongingTo);
     }
 
     void connect(SocketAddress remote, long timeoutSeconds, Connection connection) throws IOException;
@@ -23,6 +51,14 @@ interface TcpChannel {
 
     int write(ByteBuffer src) throws IOException;
 
+    // Writes a region of the file on the thread of the belonging loop, and returns the number of bytes written.
+    long transferFrom(FileChannel file, long position, long count) throws IOException;
+
+    // Writes data buffered in the channel itself. Returns false if some of it is still pending.
+    default boolean flush() throws IOException {
+        return true;
+    }
+
     boolean isOpen();
 
     void close() throws IOException;
@@ -32,4 +68,19 @@ interface TcpChannel {
     void enableInterest(int ops);
 
     void overrideInterest(int ops);
+
+    // Called on the thread of the belonging loop.
+    void disableInterest(int ops);
+
+    IOProcessor.Loop getBelongingTo();
+
+    // Bytes of the buffers which the channel holds itself, e.g. TLS records
+    default int getBufferCapacity() {
+        return 0;
+    }
+
+    // Channels which can hand objects to the peer directly skip serialization, only LoopbackTcpChannel does.
+    default boolean isSerializationSkipped() {
+        return false;
+    }
 }
@@ -0,0 +1,51 @@
+package com.github.kamatama41.nsocket;
+
+// Subscriptions are kept in the TopicShard of the loop which each connection belongs to,
+// so every update and publication for a connection runs on its own loop thread.
+// A server keeps one registry, whose processor is replaced every time the server starts.
+class TopicRegistry implements CommandListener {
+    private final Context context;
+    private volatile IOProcessor processor;
+
+    TopicRegistry(Context context) {
+        this.context = context;
+    }
+
+    void setProcessor(IOProcessor processor) {
+        this.processor = processor;
+    }
+
+    void subscribe(String topic, Connection connection) {
+        IOProcessor.Loop loop = connection.getBelongingTo();
+        loop.addEvent(() -> {
+            // The connection might be closed before this event runs
+            if (connection.isOpen()) {
+                loop.getTopicShard().subscribe(topic, connection);
+            }
+        });
+    }
+
+    void unsubscribe(String topic, Connection connection) {
+        IOProcessor.Loop loop = connection.getBelongingTo();
+        loop.addEvent(() -> loop.getTopicShard().unsubscribe(topic, connection));
+    }
+
+    void publish(String topic, String commandId, Object body) {
+        Frame frame = Frame.of(context.getCodec(), commandId, null, body);
+        for (IOProcessor.Loop loop : processor.getProcessors()) {
+            loop.addEvent(() -> {
+                for (Connection connection : loop.getTopicShard().getSubscribers(topic)) {
+                    if (connection.isOpen()) {
+                        connection.writeFrame(frame);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onDisconnected(Connection connection) {
+        IOProcessor.Loop loop = connection.getBelongingTo();
+        loop.addEvent(() -> loop.getTopicShard().unsubscribeAll(connection));
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Topic membership of connections belonging to a single IOProcessor.Loop. Not thread safe,
+// it must be accessed only on the thread of the loop.
+class TopicShard {
+    private final Map<String, Set<Connection>> subscribers;
+    private final Map<Connection, Set<String>> topics;
+
+    TopicShard() {
+        this.subscribers = new HashMap<>();
+        this.topics = new HashMap<>();
+    }
+
+    void subscribe(String topic, Connection connection) {
+        subscribers.computeIfAbsent(topic, k -> new HashSet<>()).add(connection);
+        topics.computeIfAbsent(connection, k -> new HashSet<>()).add(topic);
+    }
+
+    void unsubscribe(String topic, Connection connection) {
+        removeSubscriber(topic, connection);
+        Set<String> subscribed = topics.get(connection);
+        if (subscribed != null && subscribed.remove(topic) && subscribed.isEmpty()) {
+            topics.remove(connection);
+        }
+    }
+
+    void unsubscribeAll(Connection connection) {
+        Set<String> subscribed = topics.remove(connection);
+        if (subscribed == null) {
+            return;
+        }
+        for (String topic : subscribed) {
+            removeSubscriber(topic, connection);
+        }
+    }
+
+    Set<Connection> getSubscribers(String topic) {
+        return subscribers.getOrDefault(topic, Collections.emptySet());
+    }
+
+    private void removeSubscriber(String topic, Connection connection) {
+        Set<Connection> connections = subscribers.get(topic);
+        if (connections != null && connections.remove(connection) && connections.isEmpty()) {
+            subscribers.remove(topic);
+        }
+    }
+}
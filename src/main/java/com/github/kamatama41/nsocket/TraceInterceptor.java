@@ -0,0 +1,31 @@
+package com.github.kamatama41.nsocket;
+
+// Receives timestamps of each command request and sync result through its lifecycle, to find causes of tail latency.
+// Tracing is disabled unless an interceptor is set, then nothing is recorded and frames carry no span.
+// Methods are called on IO loops and worker threads, so implementations must be thread-safe and should not block.
+// Hooks until ENQUEUED are timestamped on the IO loop, but reported by a worker once the command ID is decoded.
+//
+// Peers must be able to read trace headers of frames, so enable it only among nodes which have this version.
+public interface TraceInterceptor {
+    enum Hook {
+        // The bytes which completed the frame were read from the channel
+        BYTES_RECEIVED,
+        // The frame was unpacked from the content buffer on the IO loop
+        FRAME_DECODED,
+        // The request was queued to the workers
+        ENQUEUED,
+        // A worker took the request
+        DEQUEUED,
+        // The body was decompressed and decoded
+        BODY_DECODED,
+        // The handler returned, for sync commands it is when the result was ready or timed out
+        HANDLER_DONE,
+        // A frame (e.g. a sync result) was queued to a connection to be written
+        WRITE_QUEUED,
+        // The frame was completely written to the channel
+        WRITE_FLUSHED,
+    }
+
+    // nanos is a value of System.nanoTime()
+    void intercept(Hook hook, TraceSpan span, String commandId, Connection connection, long nanos);
+}
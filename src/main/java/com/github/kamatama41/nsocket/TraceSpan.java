@@ -0,0 +1,66 @@
+package com.github.kamatama41.nsocket;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Identifies a command request and its result across nodes. It is carried in frames while tracing is enabled,
+// and commands sent from a handler of a traced request become its children in the same trace.
+public class TraceSpan {
+    private static final ThreadLocal<TraceSpan> CURRENT = new ThreadLocal<>();
+    private final long traceId;
+    private final long spanId;
+    private final long parentSpanId;
+
+    TraceSpan(long traceId, long spanId, long parentSpanId) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+    }
+
+    static TraceSpan root() {
+        long id = newId();
+        return new TraceSpan(id, id, 0L);
+    }
+
+    TraceSpan child() {
+        return new TraceSpan(traceId, newId(), spanId);
+    }
+
+    // The span of the request which the current thread is handling, or null if it is not traced.
+    public static TraceSpan current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(TraceSpan span) {
+        if (span == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(span);
+        }
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public long getSpanId() {
+        return spanId;
+    }
+
+    // 0 if this is the root of the trace
+    public long getParentSpanId() {
+        return parentSpanId;
+    }
+
+    private static long newId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0L);
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TraceSpan{trace=%016x, span=%016x, parent=%016x}", traceId, spanId, parentSpanId);
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.kamatama41.nsocket;
+
+import java.nio.ByteBuffer;
+
+// A frame with a trace header in a write queue, to tell interceptors when it is flushed.
+class TracedBuffer {
+    private final ByteBuffer buffer;
+    private final TraceSpan span;
+    private final String commandId;
+
+    TracedBuffer(ByteBuffer buffer, TraceSpan span, String commandId) {
+        this.buffer = buffer;
+        this.span = span;
+        this.commandId = commandId;
+    }
+
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    TraceSpan getSpan() {
+        return span;
+    }
+
+    String getCommandId() {
+        return commandId;
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.kamatama41.nsocket;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Unix domain sockets are available on Java 16 or later. The APIs are resolved reflectively
+// so that the library can still be built and used on Java 8.
+class UnixDomainSockets {
+    private static final ProtocolFamily UNIX;
+    private static final Class<?> ADDRESS_CLASS;
+    private static final Method ADDRESS_OF;
+    private static final Method OPEN_SOCKET_CHANNEL;
+    private static final Method OPEN_SERVER_SOCKET_CHANNEL;
+
+    static {
+        ProtocolFamily unix = null;
+        Class<?> addressClass = null;
+        Method addressOf = null, openSocketChannel = null, openServerSocketChannel = null;
+        try {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+            addressOf = addressClass.getMethod("of", String.class);
+            openSocketChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openServerSocketChannel = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            unix = null;
+        }
+        UNIX = unix;
+        ADDRESS_CLASS = addressClass;
+        ADDRESS_OF = addressOf;
+        OPEN_SOCKET_CHANNEL = openSocketChannel;
+        OPEN_SERVER_SOCKET_CHANNEL = openServerSocketChannel;
+    }
+
+    private UnixDomainSockets() {
+    }
+
+    static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    static boolean isUnixDomainAddress(SocketAddress address) {
+        return isSupported() && ADDRESS_CLASS.isInstance(address);
+    }
+
+    static SocketAddress address(String path) {
+        ensureSupported();
+        try {
+            return (SocketAddress) ADDRESS_OF.invoke(null, path);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalArgumentException("Invalid path for a unix domain socket: " + path, e);
+        }
+    }
+
+    static SocketChannel openSocketChannel() throws IOException {
+        return (SocketChannel) open(OPEN_SOCKET_CHANNEL);
+    }
+
+    static ServerSocketChannel openServerSocketChannel() throws IOException {
+        return (ServerSocketChannel) open(OPEN_SERVER_SOCKET_CHANNEL);
+    }
+
+    private static Object open(Method method) throws IOException {
+        ensureSupported();
+        try {
+            return method.invoke(null, UNIX);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void ensureSupported() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later.");
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.kamatama41.nsocket;
+
+class UnsubscribeCommand implements Command<String> {
+    static final String ID = "__unsubscribe";
+    private final TopicRegistry topicRegistry;
+
+    UnsubscribeCommand(TopicRegistry topicRegistry) {
+        this.topicRegistry = topicRegistry;
+    }
+
+    @Override
+    public void execute(String topic, Connection connection) {
+        topicRegistry.unsubscribe(topic, connection);
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.kamatama41.nsocket;
+
+// Times when entries of a write queue were queued, in the same order as the queue.
+// A ring buffer of primitives, so it allocates only when it grows.
+class WriteTimestamps {
+    private long[] nanos;
+    private String[] commandIds;
+    private int head;
+    private int size;
+
+    WriteTimestamps() {
+        this.nanos = new long[16];
+        this.commandIds = new String[16];
+        this.head = 0;
+        this.size = 0;
+    }
+
+    // Must be called with the lock of this object held, together with adding the entry to the queue.
+    void add(String commandId, long queuedNanos) {
+        if (size == nanos.length) {
+            grow();
+        }
+        int tail = (head + size) & (nanos.length - 1);
+        nanos[tail] = queuedNanos;
+        commandIds[tail] = commandId;
+        size++;
+    }
+
+    // Records the residency of the entry at the head of the queue.
+    synchronized void poll(Metrics metrics, long now) {
+        if (size == 0) {
+            return;
+        }
+        String commandId = commandIds[head];
+        long queuedNanos = nanos[head];
+        commandIds[head] = null;
+        head = (head + 1) & (nanos.length - 1);
+        size--;
+        metrics.recordLatency(commandId, Metrics.Stage.WRITE_QUEUE, now - queuedNanos);
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < commandIds.length; i++) {
+            commandIds[i] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        long[] newNanos = new long[nanos.length * 2];
+        String[] newCommandIds = new String[nanos.length * 2];
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) & (nanos.length - 1);
+            newNanos[i] = nanos[index];
+            newCommandIds[i] = commandIds[index];
+        }
+        nanos = newNanos;
+        commandIds = newCommandIds;
+        head = 0;
+    }
+}
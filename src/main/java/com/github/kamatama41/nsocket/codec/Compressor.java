@@ -0,0 +1,15 @@
+package com.github.kamatama41.nsocket.codec;
+
+import java.io.IOException;
+
+// Compresses encoded command requests. Both peers find the compressor by its name,
+// so a name must be unique and stable across versions.
+public interface Compressor {
+    String getName();
+
+    byte[] compress(byte[] data) throws IOException;
+
+    byte[] decompress(byte[] data, int originalLength) throws IOException;
+
+    Compressor DEFLATE = new DeflateCompressor();
+}
@@ -0,0 +1,68 @@
+package com.github.kamatama41.nsocket.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+class DeflateCompressor implements Compressor {
+    // Deflater and Inflater hold native memory, so they are reused per thread rather than per call.
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+    // Deflate can't compress data more than about 1032:1
+    private static final long MAX_COMPRESSION_RATIO = 1032L;
+
+    DeflateCompressor() {
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public byte[] compress(byte[] data) throws IOException {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] compressed = new byte[Math.max(64, data.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return Arrays.copyOf(compressed, length);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int originalLength) throws IOException {
+        if (originalLength < 0 || originalLength > (data.length + 1L) * MAX_COMPRESSION_RATIO) {
+            throw new IOException(String.format("%d bytes can't be decompressed into %d bytes.", data.length, originalLength));
+        }
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] decompressed = new byte[originalLength];
+        int length = 0;
+        try {
+            while (length < originalLength && !inflater.finished()) {
+                int inflated = inflater.inflate(decompressed, length, originalLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Failed to decompress data.", e);
+        }
+        if (length != originalLength) {
+            throw new IOException(String.format("Decompressed %d bytes, but %d expected.", length, originalLength));
+        }
+        return decompressed;
+    }
+}
@@ -3,31 +3,85 @@ package com.github.kamatama41.nsocket.integration;
 import com.github.kamatama41.nsocket.Command;
 import com.github.kamatama41.nsocket.CommandListener;
 import com.github.kamatama41.nsocket.Connection;
+import com.github.kamatama41.nsocket.ConnectionStats;
+import com.github.kamatama41.nsocket.DefaultMetrics;
+import com.github.kamatama41.nsocket.FileCommand;
+import com.github.kamatama41.nsocket.LoadBalancer;
+import com.github.kamatama41.nsocket.Metrics;
 import com.github.kamatama41.nsocket.SocketClient;
 import com.github.kamatama41.nsocket.SocketServer;
+import com.github.kamatama41.nsocket.StreamCommand;
 import com.github.kamatama41.nsocket.SyncCommand;
+import com.github.kamatama41.nsocket.TraceInterceptor;
+import com.github.kamatama41.nsocket.TraceSpan;
+import com.github.kamatama41.nsocket.codec.Compressor;
 import org.junit.jupiter.api.Test;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class IntegrationTest {
     private static final Logger log = LoggerFactory.getLogger(IntegrationTest.class);
@@ -55,6 +109,1232 @@ class IntegrationTest {
                 .run();
     }
 
+    @Test
+    void replacePooledConnections() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        InetSocketAddress address = new InetSocketAddress("localhost", 31700);
+        try {
+            server.setName("pool-server");
+            server.setPort(31700);
+            server.registerSyncCommand(new ConnectionIdCommand());
+            server.start();
+            client.setName("pool-client");
+            client.setNumOfConnectionsPerNode(3);
+            client.registerSyncCommand(new ConnectionIdCommand());
+            client.open();
+            client.addNode(address);
+            assertEquals(3, client.getActiveConnections().size());
+
+            Connection dead = client.getActiveConnections().get(0);
+            int deadId = dead.getConnectionId();
+            dead.close();
+            assertEquals(2, client.getActiveConnections().size());
+            assertFalse(client.getActiveConnections().contains(dead));
+            // The dead one is never selected, and sending starts replacing it
+            for (int i = 0; i < 20; i++) {
+                assertNotEquals(deadId, (int) client.<Integer>sendSyncCommand(address, ConnectionIdCommand.ID, 0));
+            }
+            awaitCondition(() -> client.getActiveConnections().size() == 3);
+            assertFalse(client.getActiveConnections().contains(dead));
+            awaitCondition(() -> server.getNumOfConnections() == 3);
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void spreadConnectionsAcrossProcessors() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        InetSocketAddress address = new InetSocketAddress("localhost", 31800);
+        try {
+            server.setName("spread-server");
+            server.setPort(31800);
+            server.setNumOfProcessors(2);
+            server.registerSyncCommand(new SquareCommand());
+            server.start();
+            client.setName("spread-client");
+            client.setNumOfWorkers(2);
+            client.setNumOfProcessors(2);
+            client.setNumOfConnectionsPerNode(4);
+            client.registerSyncCommand(new SquareCommand());
+            client.open();
+            client.addNode(address);
+            assertEquals(Arrays.asList(2, 2), new ArrayList<>(client.getNumOfConnectionsPerProcessor().values()));
+            awaitCondition(() ->
+                    Arrays.asList(2, 2).equals(new ArrayList<>(server.getNumOfConnectionsPerProcessor().values())));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i * i, client.<Integer>sendSyncCommand(address, SquareCommand.ID, i));
+            }
+
+            // A closed connection releases its processor
+            client.getActiveConnections().get(0).close();
+            int total = client.getNumOfConnectionsPerProcessor().values().stream().mapToInt(Integer::intValue).sum();
+            assertEquals(3, total);
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void routeCommandsWithLoadBalancers() throws Exception {
+        List<SocketServer> servers = new ArrayList<>();
+        SocketClient client = new SocketClient();
+        try {
+            for (int i = 0; i < 2; i++) {
+                SocketServer server = new SocketServer();
+                server.setName("lb-server" + i);
+                server.setPort(30100 + i);
+                server.registerSyncCommand(new SquareCommand());
+                server.start();
+                servers.add(server);
+            }
+            client.setName("lb-client");
+            client.setNumOfConnectionsPerNode(2);
+            client.registerSyncCommand(new SquareCommand());
+            client.open();
+            for (int i = 0; i < servers.size(); i++) {
+                client.addNode(new InetSocketAddress("localhost", 30100 + i));
+            }
+            assertEquals(4, client.getActiveConnections().size());
+
+            List<LoadBalancer> loadBalancers = Arrays.asList(
+                    LoadBalancer.roundRobin(),
+                    LoadBalancer.powerOfTwoChoices(),
+                    LoadBalancer.latencyEwma(),
+                    LoadBalancer.consistentHash()
+            );
+            for (LoadBalancer loadBalancer : loadBalancers) {
+                client.setLoadBalancer(loadBalancer);
+                for (int i = 0; i < 10; i++) {
+                    int result = client.sendSyncCommandToAnyNode(SquareCommand.ID, i, "key" + i);
+                    assertEquals(i * i, result);
+                }
+            }
+        } finally {
+            client.close();
+            for (SocketServer server : servers) {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    void routeKeysByConsistentHash() throws Exception {
+        List<SocketServer> servers = new ArrayList<>();
+        SocketClient client = new SocketClient();
+        try {
+            for (int i = 0; i < 3; i++) {
+                SocketServer server = new SocketServer();
+                server.setName("hash-server" + i);
+                server.setPort(32100 + i);
+                server.registerSyncCommand(new ServerNameCommand("hash-server" + i));
+                server.start();
+                servers.add(server);
+            }
+            client.setName("hash-client");
+            client.setLoadBalancer(LoadBalancer.consistentHash());
+            client.registerSyncCommand(new ServerNameCommand("hash-client"));
+            client.open();
+            for (int i = 0; i < servers.size(); i++) {
+                client.addNode(new InetSocketAddress("localhost", 32100 + i));
+            }
+
+            // The same key always goes to the same node
+            Map<String, String> routes = new HashMap<>();
+            for (int i = 0; i < 30; i++) {
+                routes.put("key" + i, client.sendSyncCommandToAnyNode(ServerNameCommand.ID, 0, "key" + i));
+            }
+            assertEquals(3, new HashSet<>(routes.values()).size());
+            for (Map.Entry<String, String> route : routes.entrySet()) {
+                String routed = client.sendSyncCommandToAnyNode(ServerNameCommand.ID, 0, route.getKey());
+                assertEquals(route.getValue(), routed);
+            }
+
+            // Keys of an unavailable node go to the others, and the rest stay where they are
+            servers.get(0).stop();
+            awaitCondition(() -> client.getActiveConnections().size() == 2);
+            for (Map.Entry<String, String> route : routes.entrySet()) {
+                String routed = client.sendSyncCommandToAnyNode(ServerNameCommand.ID, 0, route.getKey());
+                if (route.getValue().equals("hash-server0")) {
+                    assertNotEquals("hash-server0", routed);
+                } else {
+                    assertEquals(route.getValue(), routed);
+                }
+            }
+        } finally {
+            client.close();
+            for (SocketServer server : servers) {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    void broadcastCommand() throws Exception {
+        SocketServer server = new SocketServer();
+        List<SocketClient> clients = new ArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        try {
+            server.setName("broadcast-server");
+            server.setPort(30200);
+            server.start();
+            for (int i = 0; i < 3; i++) {
+                SocketClient client = new SocketClient();
+                client.setName("broadcast-client" + i);
+                client.registerCommand(new LatchCommand(latch));
+                client.open();
+                client.addNode(new InetSocketAddress("localhost", 30200));
+                clients.add(client);
+            }
+            server.broadcastCommand(LatchCommand.ID, "Hello");
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+            assertEquals(3, server.getNumOfConnections());
+            for (SocketClient client : clients) {
+                Connection connection = client.getActiveConnections().get(0);
+                assertNotNull(server.getConnection(connection.getConnectionId()));
+            }
+        } finally {
+            for (SocketClient client : clients) {
+                client.close();
+            }
+            server.stop();
+        }
+    }
+
+    @Test
+    void publishToTopic() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient subscriber = new SocketClient();
+        SocketClient other = new SocketClient();
+        CountDownLatch subscriberLatch = new CountDownLatch(1);
+        CountDownLatch otherLatch = new CountDownLatch(1);
+        try {
+            server.setName("topic-server");
+            server.setPort(30300);
+            server.registerSyncCommand(new SquareCommand());
+            server.start();
+            subscriber.setName("topic-subscriber");
+            subscriber.registerCommand(new LatchCommand(subscriberLatch));
+            subscriber.registerSyncCommand(new SquareCommand());
+            subscriber.open();
+            other.setName("topic-other");
+            other.registerCommand(new LatchCommand(otherLatch));
+            other.open();
+            other.addNode(new InetSocketAddress("localhost", 30300));
+
+            Connection connection = subscriber.addNode(new InetSocketAddress("localhost", 30300));
+            connection.subscribe("news");
+            // The server has a single worker, so the subscription is done when the sync command returns
+            assertEquals(4, connection.<Integer>sendSyncCommand(SquareCommand.ID, 2));
+
+            server.publish("news", LatchCommand.ID, "Hello");
+            assertTrue(subscriberLatch.await(10, TimeUnit.SECONDS));
+            assertFalse(otherLatch.await(1, TimeUnit.SECONDS));
+        } finally {
+            subscriber.close();
+            other.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void publishToTopicAfterRestart() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient subscriber = new SocketClient();
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            server.setName("restart-topic-server");
+            server.setPort(32500);
+            server.registerSyncCommand(new EchoCommand());
+            assertThrows(IllegalStateException.class, () -> server.publish("news", LatchCommand.ID, "Hello"));
+            server.start();
+            server.stop();
+            server.start();
+            subscriber.setName("restart-topic-subscriber");
+            subscriber.registerCommand(new LatchCommand(latch));
+            subscriber.registerSyncCommand(new EchoCommand());
+            subscriber.open();
+
+            Connection connection = subscriber.addNode(new InetSocketAddress("localhost", 32500));
+            connection.subscribe("news");
+            assertEquals("ping", connection.<String>sendSyncCommand(EchoCommand.ID, "ping"));
+            server.publish("news", LatchCommand.ID, "Hello");
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertEquals(1, server.getNumOfConnections());
+            subscriber.close();
+            awaitCondition(() -> server.getNumOfConnections() == 0);
+        } finally {
+            subscriber.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void removeClosedConnectionsFromRegistry() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        try {
+            server.setName("registry-server");
+            server.setPort(32400);
+            server.setHeartbeatIntervalSeconds(1);
+            server.registerSyncCommand(new EchoCommand());
+            server.start();
+            client.setName("registry-client");
+            client.registerSyncCommand(new EchoCommand());
+            client.open();
+
+            // Closed by the client
+            Connection connection = client.addNode(new InetSocketAddress("localhost", 32400));
+            assertEquals("ping", connection.<String>sendSyncCommand(EchoCommand.ID, "ping"));
+            int connectionId = connection.getConnectionId();
+            assertNotNull(server.getConnection(connectionId));
+            assertEquals(1, server.getNumOfConnections());
+            client.close();
+            awaitCondition(() -> server.getConnection(connectionId) == null);
+            assertEquals(0, server.getNumOfConnections());
+
+            // Closed by the server when heartbeats time out (3 times the interval)
+            try (Socket silent = new Socket("localhost", 32400)) {
+                assertTrue(silent.isConnected());
+                awaitCondition(() -> server.getNumOfConnections() == 1);
+                int silentId = server.getConnections().iterator().next().getConnectionId();
+                long deadline = System.currentTimeMillis() + 10000L;
+                while (server.getConnection(silentId) != null && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(100L);
+                }
+                assertNull(server.getConnection(silentId));
+                assertEquals(0, server.getNumOfConnections());
+            }
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void resumeSslSessionOnReconnect() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        try {
+            server.setName("resume-server");
+            server.setPort(30400);
+            server.registerSyncCommand(new SquareCommand());
+            SSLContext serverSslContext = TestRunner.createSSLContext("test/nsocket.server.p12", "nsocket-server");
+            int defaultCacheSize = serverSslContext.getServerSessionContext().getSessionCacheSize();
+            server.setSslContext(serverSslContext);
+            server.start();
+            // The JVM and the given SSLContext are left as they are
+            assertNull(System.getProperty("jdk.tls.server.enableSessionTicketExtension"));
+            assertEquals(defaultCacheSize, serverSslContext.getServerSessionContext().getSessionCacheSize());
+            client.setName("resume-client");
+            client.registerSyncCommand(new SquareCommand());
+            client.setSslContext(TestRunner.createSSLContext("test/nsocket.client.p12", "nsocket-client"));
+            client.open();
+
+            Connection connection = client.addNode(new InetSocketAddress("localhost", 30400));
+            assertEquals(4, connection.<Integer>sendSyncCommand(SquareCommand.ID, 2));
+            connection.close();
+            Connection reconnected = client.reconnect(connection);
+            assertEquals(9, reconnected.<Integer>sendSyncCommand(SquareCommand.ID, 3));
+            assertEquals(1, client.getNumOfFullSslHandshakes());
+            assertEquals(1, client.getNumOfResumedSslHandshakes());
+            assertEquals(2, server.getSslHandshakeDurationHistogram().getCount());
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void runSslHandshakeTasksOutOfLoops() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        SocketClient stoppedClient = new SocketClient();
+        Queue<String> threadNames = new ConcurrentLinkedQueue<>();
+        try {
+            server.setName("ssl-task-server");
+            server.setPort(32300);
+            server.registerSyncCommand(new SquareCommand());
+            server.setSslContext(TestRunner.createSSLContext("test/nsocket.server.p12", "nsocket-server"));
+            server.start();
+            // Certificates are verified in delegated tasks
+            client.setName("ssl-task-client");
+            client.registerSyncCommand(new SquareCommand());
+            client.setSslContext(TestRunner.createSSLContext("test/nsocket.client.p12", "nsocket-client",
+                    trustManager -> new ThreadRecordingTrustManager(trustManager, threadNames)));
+            client.open();
+            Connection connection = client.addNode(new InetSocketAddress("localhost", 32300));
+            assertEquals(4, connection.<Integer>sendSyncCommand(SquareCommand.ID, 2));
+            assertFalse(threadNames.isEmpty());
+            for (String threadName : threadNames) {
+                assertTrue(threadName.startsWith("ssl-task-client-handshake-"), threadName);
+            }
+
+            // Tasks rejected by a shut down executor close the connection instead of leaving it handshaking
+            stoppedClient.setName("ssl-task-stopped-client");
+            stoppedClient.setConnectionTimeoutSeconds(2);
+            stoppedClient.setSslContext(TestRunner.createSSLContext("test/nsocket.client.p12", "nsocket-client"));
+            stoppedClient.open();
+            shutdownHandshakeExecutor(stoppedClient);
+            assertThrows(IOException.class, () -> stoppedClient.addNode(new InetSocketAddress("localhost", 32300)));
+            awaitCondition(() -> stoppedClient.getNumOfFailedSslHandshakes() == 1);
+        } finally {
+            client.close();
+            stoppedClient.close();
+            server.stop();
+        }
+    }
+
+    // The executor is internal, so it's shut down through reflection as if the client were stopping
+    private static void shutdownHandshakeExecutor(SocketClient client) throws Exception {
+        Field processorField = SocketClient.class.getDeclaredField("processor");
+        processorField.setAccessible(true);
+        Object processor = processorField.get(client);
+        Field executorField = processor.getClass().getDeclaredField("handshakeExecutor");
+        executorField.setAccessible(true);
+        ((ExecutorService) executorField.get(processor)).shutdown();
+    }
+
+    @Test
+    void limitConcurrentSslHandshakes() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        InetSocketAddress address = new InetSocketAddress("localhost", 30500);
+        try {
+            server.setName("admission-server");
+            server.setPort(30500);
+            server.registerSyncCommand(new SquareCommand());
+            server.setSslContext(TestRunner.createSSLContext("test/nsocket.server.p12", "nsocket-server"));
+            server.setMaxConcurrentSslHandshakes(1);
+            server.setSslHandshakeAdmissionTimeoutMillis(0L);
+            server.start();
+            client.setName("admission-client");
+            client.registerSyncCommand(new SquareCommand());
+            client.setSslContext(TestRunner.createSSLContext("test/nsocket.client.p12", "nsocket-client"));
+            client.setConnectionTimeoutSeconds(1);
+            client.open();
+
+            // A socket which never starts handshaking holds the only permit
+            try (Socket idle = new Socket("localhost", 30500)) {
+                assertTrue(idle.isConnected());
+                assertThrows(IOException.class, () -> client.addNode(address));
+                assertEquals(1, server.getNumOfRefusedSslHandshakes());
+            }
+            for (int i = 0; i < 100 && server.getNumOfFailedSslHandshakes() == 0; i++) {
+                TimeUnit.MILLISECONDS.sleep(100L);
+            }
+            assertEquals(4, client.addNode(address).<Integer>sendSyncCommand(SquareCommand.ID, 2));
+            assertEquals(1, server.getSslHandshakeDurationHistogram().getCount());
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void compressLargeMessages() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        SocketClient plainClient = new SocketClient();
+        CountingCompressor compressor = new CountingCompressor();
+        InetSocketAddress address = new InetSocketAddress("localhost", 30600);
+        String large = String.join("", Collections.nCopies(10000, "nsocket"));
+        try {
+            server.setName("compression-server");
+            server.setPort(30600);
+            server.registerSyncCommand(new EchoCommand());
+            server.setCompressionThresholdBytes(1024);
+            server.registerCompressor(compressor);
+            server.start();
+            client.setName("compression-client");
+            client.registerSyncCommand(new EchoCommand());
+            client.setCompressionThresholdBytes(1024);
+            client.registerCompressor(compressor);
+            client.open();
+            plainClient.setName("compression-plain-client");
+            plainClient.registerSyncCommand(new EchoCommand());
+            plainClient.open();
+
+            Connection connection = client.addNode(address);
+            assertEquals("small", connection.sendSyncCommand(EchoCommand.ID, "small"));
+            assertEquals(0, compressor.numOfCompressed.get());
+            assertEquals(large, connection.sendSyncCommand(EchoCommand.ID, large));
+            assertEquals(2, compressor.numOfCompressed.get());
+            assertEquals(2, compressor.numOfDecompressed.get());
+
+            // The plain client only has the default compressor, and never compresses its requests
+            assertEquals(large, plainClient.addNode(address).sendSyncCommand(EchoCommand.ID, large));
+            assertEquals(2, compressor.numOfCompressed.get());
+        } finally {
+            client.close();
+            plainClient.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void sendLargeStream() throws Exception {
+        for (boolean ssl : new boolean[]{false, true}) {
+            SocketServer server = new SocketServer();
+            SocketClient client = new SocketClient();
+            ChecksumCommand command = new ChecksumCommand();
+            try {
+                server.setName("stream-server");
+                server.setPort(30700);
+                server.setMaxBufferedStreamFragments(2);
+                server.registerStreamCommand(command);
+                client.setName("stream-client");
+                if (ssl) {
+                    server.setSslContext(TestRunner.createSSLContext("test/nsocket.server.p12", "nsocket-server"));
+                    client.setSslContext(TestRunner.createSSLContext("test/nsocket.client.p12", "nsocket-client"));
+                }
+                server.start();
+                client.open();
+
+                int size = 16 * 1024 * 1024 + 123;
+                CheckedInputStream source = new CheckedInputStream(new InputStream() {
+                    private int count = 0;
+
+                    @Override
+                    public int read() {
+                        return count < size ? (count++ * 31) & 0xff : -1;
+                    }
+                }, new CRC32());
+                client.addNode(new InetSocketAddress("localhost", 30700)).sendStream(ChecksumCommand.ID, source);
+                assertTrue(command.latch.await(30, TimeUnit.SECONDS));
+                assertEquals(size, command.numOfBytes);
+                assertEquals(source.getChecksum().getValue(), command.checksum);
+            } finally {
+                client.close();
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    void keepConnectionWhileStreamConsumerPauses() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        PausedChecksumCommand command = new PausedChecksumCommand();
+        try {
+            server.setName("paused-stream-server");
+            server.setPort(31600);
+            server.setHeartbeatIntervalSeconds(1);
+            server.setMaxBufferedStreamFragments(2);
+            server.registerStreamCommand(command);
+            server.start();
+            client.setName("paused-stream-client");
+            client.setHeartbeatIntervalSeconds(1);
+            client.open();
+
+            int size = 4 * 1024 * 1024;
+            CheckedInputStream source = new CheckedInputStream(new InputStream() {
+                private int count = 0;
+
+                @Override
+                public int read() {
+                    return count < size ? (count++ * 31) & 0xff : -1;
+                }
+            }, new CRC32());
+            Connection connection = client.addNode(new InetSocketAddress("localhost", 31600));
+            Thread sender = new Thread(() -> {
+                try {
+                    connection.sendStream(PausedChecksumCommand.ID, source);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            sender.start();
+            // Longer than the heartbeat timeout (3 times the interval), while reading of the server is suspended
+            Thread.sleep(4500L);
+            command.resume.countDown();
+            sender.join(30000L);
+            ChecksumCommand received = command;
+            assertTrue(received.latch.await(30, TimeUnit.SECONDS));
+            assertEquals(size, received.numOfBytes);
+            assertEquals(source.getChecksum().getValue(), received.checksum);
+            assertTrue(connection.isOpen());
+            assertEquals(1, server.getNumOfConnections());
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void sendFile() throws Exception {
+        Path dir = Files.createTempDirectory("nsocket");
+        byte[] content = new byte[8 * 1024 * 1024 + 123];
+        new Random().nextBytes(content);
+        Path source = Files.write(dir.resolve("source.bin"), content);
+        for (String mode : new String[]{"plaintext", "ssl", "loopback"}) {
+            SocketServer server = new SocketServer();
+            SocketClient client = new SocketClient();
+            ReceiveFileCommand command = new ReceiveFileCommand(dir.resolve("received-" + mode));
+            CountDownLatch latch = new CountDownLatch(1);
+            try {
+                server.setName("file-server");
+                server.setPort(30800);
+                server.registerFileCommand(command);
+                server.registerCommand(new LatchCommand(latch));
+                client.setName("file-client");
+                if (mode.equals("ssl")) {
+                    server.setSslContext(TestRunner.createSSLContext("test/nsocket.server.p12", "nsocket-server"));
+                    client.setSslContext(TestRunner.createSSLContext("test/nsocket.client.p12", "nsocket-client"));
+                }
+                server.start();
+                client.open();
+
+                SocketAddress address = mode.equals("loopback") ?
+                        server.getLoopbackAddress() : new InetSocketAddress("localhost", 30800);
+                Connection connection = client.addNode(address);
+                connection.sendFile(ReceiveFileCommand.ID, source);
+                // Frames after the file are unpacked as usual
+                connection.sendCommand(LatchCommand.ID, "Hello");
+                assertTrue(latch.await(10, TimeUnit.SECONDS));
+                assertTrue(command.latch.await(10, TimeUnit.SECONDS));
+                assertEquals("source.bin", command.name);
+                assertEquals(content.length, command.size);
+                assertTrue(Arrays.equals(content, Files.readAllBytes(command.target)));
+            } finally {
+                client.close();
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    void recordMetrics() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        DefaultMetrics serverMetrics = new DefaultMetrics();
+        DefaultMetrics clientMetrics = new DefaultMetrics();
+        try {
+            server.setName("metrics-server");
+            server.setPort(30900);
+            server.setMetrics(serverMetrics);
+            server.registerSyncCommand(new SquareCommand());
+            server.start();
+            client.setName("metrics-client");
+            client.setMetrics(clientMetrics);
+            client.registerSyncCommand(new SquareCommand());
+            client.open();
+
+            Connection connection = client.addNode(new InetSocketAddress("localhost", 30900));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i * i, connection.<Integer>sendSyncCommand(SquareCommand.ID, i));
+            }
+
+            DefaultMetrics.CommandStats sent = clientMetrics.getCommandStats(SquareCommand.ID);
+            assertEquals(10, sent.getNumOfSent());
+            assertEquals(10, sent.getLatency(Metrics.Stage.WRITE_QUEUE).getCount());
+            DefaultMetrics.CommandStats received = serverMetrics.getCommandStats(SquareCommand.ID);
+            assertEquals(10, received.getNumOfReceived());
+            assertEquals(sent.getSentBytes(), received.getReceivedBytes());
+            for (Metrics.Stage stage : new Metrics.Stage[]{
+                    Metrics.Stage.QUEUE_WAIT, Metrics.Stage.DECODE, Metrics.Stage.HANDLER}) {
+                assertEquals(10, received.getLatency(stage).getCount());
+            }
+
+            Map<String, Long> gauges = serverMetrics.getGauges();
+            assertEquals(1L, gauges.get("metrics-server.connections"));
+            assertEquals(0L, gauges.get("metrics-server.worker.queue"));
+            assertEquals(1L, gauges.entrySet().stream()
+                    .filter(e -> e.getKey().matches("metrics-server-processor-\\d+\\.connections"))
+                    .mapToLong(Map.Entry::getValue).sum());
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void exposeMBeans() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName serverName = new ObjectName("com.github.kamatama41.nsocket:type=SocketServer,name=\"jmx-server\"");
+        ObjectName clientName = new ObjectName("com.github.kamatama41.nsocket:type=SocketClient,name=\"jmx-client\"");
+        try {
+            server.setName("jmx-server");
+            server.setPort(31000);
+            server.setDefaultContentBufferSize(64);
+            server.registerSyncCommand(new EchoCommand());
+            server.start();
+            client.setName("jmx-client");
+            client.registerSyncCommand(new EchoCommand());
+            client.open();
+
+            Connection connection = client.addNode(new InetSocketAddress("localhost", 31000));
+            String message = String.join("", Collections.nCopies(1000, "a"));
+            assertEquals(message, connection.sendSyncCommand(EchoCommand.ID, message));
+
+            assertEquals(1, mbeanServer.getAttribute(serverName, "NumOfConnections"));
+            assertTrue((Long) mbeanServer.getAttribute(serverName, "NumOfContentBufferExpansions") > 0);
+            assertEquals(0, mbeanServer.getAttribute(serverName, "NumOfQueuedRequests"));
+            CompositeData[] processorStats = (CompositeData[]) mbeanServer.getAttribute(serverName, "ProcessorStats");
+            assertEquals(1, Arrays.stream(processorStats).mapToInt(stats -> (Integer) stats.get("numOfConnections")).sum());
+            assertEquals(1, mbeanServer.getAttribute(clientName, "NumOfActiveConnections"));
+            assertEquals(0, mbeanServer.getAttribute(clientName, "NumOfInFlightSyncRequests"));
+
+            mbeanServer.setAttribute(serverName, new Attribute("HeartbeatIntervalSeconds", 5));
+            assertEquals(5, server.getHeartbeatIntervalSeconds());
+            mbeanServer.setAttribute(clientName, new Attribute("DefaultContentBufferSize", 1024));
+            assertEquals(1024, client.getDefaultContentBufferSize());
+        } finally {
+            client.close();
+            server.stop();
+        }
+        assertFalse(mbeanServer.isRegistered(serverName));
+        assertFalse(mbeanServer.isRegistered(clientName));
+    }
+
+    @Test
+    void traceRequests() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        TraceRecorder serverTraces = new TraceRecorder();
+        TraceRecorder clientTraces = new TraceRecorder();
+        try {
+            server.setName("trace-server");
+            server.setPort(31100);
+            // A worker waits for the result of the relay, so the nested result needs another one
+            server.setNumOfWorkers(2);
+            server.setTraceInterceptor(serverTraces);
+            server.registerSyncCommand(new RelayCommand());
+            server.registerSyncCommand(new SquareCommand());
+            server.start();
+            client.setName("trace-client");
+            client.setTraceInterceptor(clientTraces);
+            client.registerSyncCommand(new RelayCommand());
+            client.registerSyncCommand(new SquareCommand());
+            client.open();
+
+            Connection connection = client.addNode(new InetSocketAddress("localhost", 31100));
+            assertEquals(9, (int) connection.<Integer>sendSyncCommand(RelayCommand.ID, 3));
+
+            // The client started the trace, the server handled it in the same span
+            TraceSpan span = clientTraces.awaitSpan(TraceInterceptor.Hook.WRITE_FLUSHED, RelayCommand.ID);
+            assertEquals(0L, span.getParentSpanId());
+            long previous = Long.MIN_VALUE;
+            for (TraceInterceptor.Hook hook : new TraceInterceptor.Hook[]{
+                    TraceInterceptor.Hook.BYTES_RECEIVED, TraceInterceptor.Hook.FRAME_DECODED,
+                    TraceInterceptor.Hook.ENQUEUED, TraceInterceptor.Hook.DEQUEUED,
+                    TraceInterceptor.Hook.BODY_DECODED, TraceInterceptor.Hook.HANDLER_DONE}) {
+                TraceRecorder.Record record = serverTraces.await(hook, RelayCommand.ID);
+                assertEquals(span.getTraceId(), record.span.getTraceId());
+                assertEquals(span.getSpanId(), record.span.getSpanId());
+                assertTrue(record.nanos >= previous);
+                previous = record.nanos;
+            }
+            TraceSpan result = serverTraces.awaitSpan(TraceInterceptor.Hook.WRITE_FLUSHED, "__sync_result");
+            assertEquals(span.getSpanId(), result.getSpanId());
+
+            // The command sent by the handler is a child of the span
+            TraceSpan child = clientTraces.awaitSpan(TraceInterceptor.Hook.HANDLER_DONE, SquareCommand.ID);
+            assertEquals(span.getTraceId(), child.getTraceId());
+            assertEquals(span.getSpanId(), child.getParentSpanId());
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void detectStalls() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        try {
+            server.setName("stall-server");
+            server.setPort(31200);
+            server.setSlowCommandThresholdMillis(50L);
+            server.setSlowConsumerThresholdMillis(100L);
+            server.registerSyncCommand(new SleepCommand());
+            server.start();
+            client.setName("stall-client");
+            client.setSlowLoopThresholdMillis(0L);
+            client.registerSyncCommand(new SleepCommand());
+            client.open();
+
+            Connection connection = client.addNode(new InetSocketAddress("localhost", 31200));
+            assertEquals(100, (int) connection.<Integer>sendSyncCommand(SleepCommand.ID, 100));
+            assertEquals(1L, server.getNumOfSlowCommands());
+            assertTrue(client.getNumOfSlowLoops() > 0);
+
+            // A peer which never reads
+            try (Socket socket = new Socket()) {
+                socket.setReceiveBufferSize(4096);
+                socket.connect(new InetSocketAddress("localhost", 31200));
+                awaitCondition(() -> server.getNumOfConnections() == 2);
+                String payload = String.join("", Collections.nCopies(512 * 1024, "a"));
+                for (int i = 0; i < 64; i++) {
+                    server.broadcastCommand("ignored", payload, c -> c.getConnectionId() != connection.getConnectionId());
+                }
+                awaitCondition(() -> server.getNumOfSlowConsumers() == 1L);
+            }
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void snapshotConnectionStats() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient heavyClient = new SocketClient();
+        SocketClient lightClient = new SocketClient();
+        try {
+            server.setName("stats-server");
+            server.setPort(31300);
+            server.registerSyncCommand(new EchoCommand());
+            server.start();
+            heavyClient.setName("stats-heavy-client");
+            heavyClient.registerSyncCommand(new EchoCommand());
+            heavyClient.open();
+            lightClient.setName("stats-light-client");
+            lightClient.registerSyncCommand(new EchoCommand());
+            lightClient.open();
+
+            Connection heavy = heavyClient.addNode(new InetSocketAddress("localhost", 31300));
+            Connection light = lightClient.addNode(new InetSocketAddress("localhost", 31300));
+            String message = String.join("", Collections.nCopies(1024, "a"));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(message, heavy.sendSyncCommand(EchoCommand.ID, message));
+            }
+            assertEquals("a", light.sendSyncCommand(EchoCommand.ID, "a"));
+
+            List<ConnectionStats> top = server.getConnectionStats(ConnectionStats.Stat.RECEIVED_BYTES.descending(), 1);
+            assertEquals(1, top.size());
+            ConnectionStats stats = top.get(0);
+            assertEquals(heavy.getConnectionId(), stats.getConnectionId());
+            assertEquals(10L, stats.getNumOfReceivedMessages());
+            assertTrue(stats.getLastReadTime() > 0L);
+            awaitCondition(() -> heavy.getStats().getSentBytes() == stats.getReceivedBytes());
+            assertEquals(0, heavy.getStats().getNumOfInFlightSyncRequests());
+            // Idle connections hold no read buffer
+            awaitCondition(() -> heavy.getStats().getContentBufferCapacity() == 0);
+
+            CompositeData[] found = (CompositeData[]) ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName("com.github.kamatama41.nsocket:type=SocketServer,name=\"stats-server\""),
+                    "findTopConnections", new Object[]{"RECEIVED_MESSAGES", 2}, new String[]{"java.lang.String", "int"});
+            assertEquals(2, found.length);
+            assertEquals(heavy.getConnectionId(), found[0].get("connectionId"));
+            assertEquals(light.getConnectionId(), found[1].get("connectionId"));
+        } finally {
+            heavyClient.close();
+            lightClient.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void releaseSslBuffersWhenIdle() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        try {
+            server.setName("ssl-buffer-server");
+            server.setPort(31900);
+            server.registerSyncCommand(new EchoCommand());
+            server.setSslContext(TestRunner.createSSLContext("test/nsocket.server.p12", "nsocket-server"));
+            server.start();
+            client.setName("ssl-buffer-client");
+            client.registerSyncCommand(new EchoCommand());
+            client.setSslContext(TestRunner.createSSLContext("test/nsocket.client.p12", "nsocket-client"));
+            client.open();
+
+            Connection connection = client.addNode(new InetSocketAddress("localhost", 31900));
+            // Buffers of records are returned once the handshake and the first exchange have been drained
+            String message = String.join("", Collections.nCopies(4096, "a"));
+            assertEquals(message, connection.sendSyncCommand(EchoCommand.ID, message));
+            awaitCondition(() -> connection.getStats().getChannelBufferCapacity() == 0);
+            awaitCondition(() -> connection.getStats().getContentBufferCapacity() == 0);
+            awaitCondition(() -> server.getConnectionStats(ConnectionStats.Stat.CHANNEL_BUFFER_CAPACITY.descending(), 1)
+                    .get(0).getChannelBufferCapacity() == 0);
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void unwrapPartialSslRecords() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        try (TrickleProxy proxy = new TrickleProxy(32001, 32000)) {
+            // Content buffers smaller than a record make records unwrapped through the unwrap buffer
+            server.setName("partial-record-server");
+            server.setPort(32000);
+            server.setDefaultContentBufferSize(1024);
+            server.registerSyncCommand(new EchoCommand());
+            server.setSslContext(TestRunner.createSSLContext("test/nsocket.server.p12", "nsocket-server"));
+            server.start();
+            client.setName("partial-record-client");
+            client.setDefaultContentBufferSize(1024);
+            client.registerSyncCommand(new EchoCommand());
+            client.setSslContext(TestRunner.createSSLContext("test/nsocket.client.p12", "nsocket-client"));
+            client.open();
+
+            Connection connection = client.addNode(new InetSocketAddress("localhost", proxy.getPort()));
+            for (int size : new int[]{1, 1000, 5000, 40000}) {
+                String message = String.join("", Collections.nCopies(size, "a"));
+                assertEquals(message, connection.sendSyncCommand(EchoCommand.ID, message));
+            }
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void rejectCompressedFramesWithBogusLength() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        try {
+            server.setName("bogus-compression-server");
+            server.setPort(31400);
+            server.setNumOfWorkers(1);
+            server.registerSyncCommand(new SquareCommand());
+            server.start();
+            client.setName("bogus-compression-client");
+            client.registerSyncCommand(new SquareCommand());
+            client.open();
+
+            // Frames which claim huge or negative lengths must not kill the only worker by OutOfMemoryError
+            try (Socket socket = new Socket("localhost", 31400)) {
+                for (int originalLength : new int[]{Integer.MAX_VALUE, 1024 * 1024 * 1024, -1}) {
+                    socket.getOutputStream().write(compressedFrame(originalLength));
+                }
+                socket.getOutputStream().flush();
+                Connection connection = client.addNode(new InetSocketAddress("localhost", 31400));
+                assertEquals(4, connection.<Integer>sendSyncCommand(SquareCommand.ID, 2));
+            }
+            assertThrows(IOException.class, () -> Compressor.DEFLATE.decompress(new byte[16], 1024 * 1024));
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    // A compressed frame (ext type 1) of (compressor name, original length, compressed message)
+    private static byte[] compressedFrame(int originalLength) throws IOException {
+        try (MessageBufferPacker payload = MessagePack.newDefaultBufferPacker();
+             MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            byte[] compressed = Compressor.DEFLATE.compress("{}".getBytes(StandardCharsets.UTF_8));
+            payload.packString(Compressor.DEFLATE.getName());
+            payload.packInt(originalLength);
+            payload.packBinaryHeader(compressed.length);
+            payload.writePayload(compressed);
+            byte[] ext = payload.toByteArray();
+            packer.packExtensionTypeHeader((byte) 1, ext.length);
+            packer.writePayload(ext);
+            return packer.toByteArray();
+        }
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Condition was not satisfied in time.");
+            }
+            Thread.sleep(10L);
+        }
+    }
+
+    @Test
+    void runServerAndClientOverLoopback() throws Exception {
+        for (boolean serializationSkipped : new boolean[]{false, true}) {
+            SocketServer server = new SocketServer();
+            SocketClient client = new SocketClient();
+            CountDownLatch latch = new CountDownLatch(1);
+            try {
+                server.setName("loopback-server");
+                server.setLoopbackSerializationSkipped(serializationSkipped);
+                server.registerSyncCommand(new SquareCommand());
+                server.start();
+                client.setName("loopback-client");
+                client.registerCommand(new LatchCommand(latch));
+                client.registerSyncCommand(new SquareCommand());
+                client.open();
+                SocketAddress address = server.getLoopbackAddress();
+                client.addNode(address);
+                for (int i = 0; i < 100; i++) {
+                    assertEquals(i * i, client.<Integer>sendSyncCommand(address, SquareCommand.ID, i));
+                }
+                // A body of another class than the command takes is converted even if serialization is skipped
+                assertEquals(9, client.<Integer>sendSyncCommand(address, SquareCommand.ID, 3L));
+                server.broadcastCommand(LatchCommand.ID, "Hello");
+                assertTrue(latch.await(10, TimeUnit.SECONDS));
+            } finally {
+                client.close();
+                server.stop();
+            }
+            assertTrue(client.getActiveConnections().isEmpty());
+        }
+    }
+
+    @Test
+    void boundLoopbackConnections() throws Exception {
+        SocketServer server1 = new SocketServer();
+        SocketServer server2 = new SocketServer();
+        SocketClient client = new SocketClient();
+        PausedChecksumCommand command = new PausedChecksumCommand();
+        try {
+            // Servers of the same name are still different nodes
+            server1.setName("twin-server");
+            server1.setPort(31500);
+            server1.registerSyncCommand(new SquareCommand());
+            server1.setMaxBufferedStreamFragments(2);
+            server1.registerStreamCommand(command);
+            server1.start();
+            server2.setName("twin-server");
+            server2.setPort(31501);
+            server2.setJmxEnabled(false);
+            server2.registerSyncCommand(new SquareCommand());
+            server2.start();
+            client.setName("loopback-client");
+            client.registerSyncCommand(new SquareCommand());
+            client.setWriteQueueHighWaterMark(1024 * 1024);
+            client.open();
+            Connection connection1 = client.addNode(server1.getLoopbackAddress());
+            Connection connection2 = client.addNode(server2.getLoopbackAddress());
+            assertNotSame(connection1, connection2);
+            assertEquals(2, client.getActiveConnections().size());
+            assertEquals(4, client.<Integer>sendSyncCommand(server1.getLoopbackAddress(), SquareCommand.ID, 2));
+            assertEquals(9, client.<Integer>sendSyncCommand(server2.getLoopbackAddress(), SquareCommand.ID, 3));
+
+            // A paused reader fills the write queue of the writer up to the high water mark
+            int size = 16 * 1024 * 1024;
+            CheckedInputStream source = new CheckedInputStream(new InputStream() {
+                private int count = 0;
+
+                @Override
+                public int read() {
+                    return count < size ? (count++ * 31) & 0xff : -1;
+                }
+            }, new CRC32());
+            Thread sender = new Thread(() -> {
+                try {
+                    connection1.sendStream(PausedChecksumCommand.ID, source);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            sender.start();
+            awaitCondition(() -> !connection1.isWritable());
+            command.resume.countDown();
+            sender.join(30000L);
+            ChecksumCommand received = command;
+            assertTrue(received.latch.await(30, TimeUnit.SECONDS));
+            assertEquals(size, received.numOfBytes);
+            assertEquals(source.getChecksum().getValue(), received.checksum);
+            assertTrue(connection1.isWritable());
+        } finally {
+            client.close();
+            server1.stop();
+            server2.stop();
+        }
+    }
+
+    @Test
+    void deliverLoopbackFramesBeforeClose() throws Exception {
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        CountDownLatch received = new CountDownLatch(51);
+        CountDownLatch blocking = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            server.setName("loopback-close-server");
+            server.setPort(32200);
+            server.setNumOfProcessors(1);
+            server.registerCommand(new LatchCommand(received));
+            // Blocks the loop of the server while the client writes and closes
+            server.registerListener(new CommandListener() {
+                @Override
+                public void onDisconnected(Connection connection) {
+                    if (blocking.getCount() > 0) {
+                        blocking.countDown();
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            });
+            server.start();
+            client.setName("loopback-close-client");
+            client.setNumOfConnectionsPerNode(2);
+            client.open();
+            client.addNode(server.getLoopbackAddress());
+            List<Connection> connections = client.getActiveConnections();
+            assertEquals(2, connections.size());
+            connections.get(0).close();
+            assertTrue(blocking.await(10, TimeUnit.SECONDS));
+
+            // More than the content buffer (8KB), starting with a frame larger than it
+            Connection connection = connections.get(1);
+            connection.sendCommand(LatchCommand.ID, String.join("", Collections.nCopies(20 * 1024, "a")));
+            for (int i = 0; i < 50; i++) {
+                connection.sendCommand(LatchCommand.ID, String.join("", Collections.nCopies(2048, "b")));
+            }
+            awaitCondition(() -> connection.getStats().getWriteQueueBytes() == 0);
+            connection.close();
+            release.countDown();
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void runServerAndClientOverUnixDomainSocket() throws Exception {
+        Class<?> addressClass = null;
+        try {
+            addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+        } catch (ClassNotFoundException ignored) {
+        }
+        assumeTrue(addressClass != null, "Unix domain sockets require Java 16 or later");
+
+        Path path = Files.createTempDirectory("nsocket").resolve("server.sock");
+        SocketAddress address = (SocketAddress) addressClass.getMethod("of", Path.class).invoke(null, path);
+        SocketServer server = new SocketServer();
+        SocketClient client = new SocketClient();
+        try {
+            server.setName("uds-server");
+            server.setUnixDomainSocketPath(path.toString());
+            server.registerSyncCommand(new SquareCommand());
+            server.start();
+            client.setName("uds-client");
+            client.registerSyncCommand(new SquareCommand());
+            client.open();
+            client.addNode(address);
+            assertEquals(9, client.<Integer>sendSyncCommand(address, SquareCommand.ID, 3));
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    private static class ThreadRecordingTrustManager extends X509ExtendedTrustManager {
+        private final X509ExtendedTrustManager delegate;
+        private final Queue<String> threadNames;
+
+        ThreadRecordingTrustManager(X509ExtendedTrustManager delegate, Queue<String> threadNames) {
+            this.delegate = delegate;
+            this.threadNames = threadNames;
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket)
+                throws CertificateException {
+            delegate.checkClientTrusted(chain, authType, socket);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+                throws CertificateException {
+            delegate.checkServerTrusted(chain, authType, socket);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+                throws CertificateException {
+            threadNames.add(Thread.currentThread().getName());
+            delegate.checkClientTrusted(chain, authType, engine);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+                throws CertificateException {
+            threadNames.add(Thread.currentThread().getName());
+            delegate.checkServerTrusted(chain, authType, engine);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            delegate.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            delegate.checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return delegate.getAcceptedIssuers();
+        }
+    }
+
+    // Forwards bytes in small chunks, so that TLS records arrive in parts
+    private static class TrickleProxy implements Closeable {
+        private static final int CHUNK_SIZE = 500;
+        private final ServerSocket serverSocket;
+        private final Queue<Socket> sockets = new ConcurrentLinkedQueue<>();
+
+        TrickleProxy(int port, int targetPort) throws IOException {
+            this.serverSocket = new ServerSocket(port);
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket accepted = serverSocket.accept();
+                        Socket target = new Socket("localhost", targetPort);
+                        accepted.setTcpNoDelay(true);
+                        target.setTcpNoDelay(true);
+                        sockets.add(accepted);
+                        sockets.add(target);
+                        forward(accepted, target);
+                        forward(target, accepted);
+                    }
+                } catch (IOException ignored) {
+                    // Closed
+                }
+            }, "trickle-proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private static void forward(Socket from, Socket to) {
+            Thread forwarder = new Thread(() -> {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                        out.flush();
+                        TimeUnit.MILLISECONDS.sleep(1L);
+                    }
+                } catch (IOException | InterruptedException ignored) {
+                    // Closed
+                }
+            }, "trickle-proxy-forwarder");
+            forwarder.setDaemon(true);
+            forwarder.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
     private static class TestRunner {
         private static final List<String> CONTENTS = Arrays.asList(
                 // Simple string
@@ -194,6 +1474,11 @@ class IntegrationTest {
         }
 
         private static SSLContext createSSLContext(String keyPath, String keyStorePass) throws Exception {
+            return createSSLContext(keyPath, keyStorePass, UnaryOperator.identity());
+        }
+
+        private static SSLContext createSSLContext(String keyPath, String keyStorePass,
+                UnaryOperator<X509ExtendedTrustManager> trustManagerWrapper) throws Exception {
             KeyStore keyStore = KeyStore.getInstance("PKCS12");
             try (InputStream keyStoreIS = new FileInputStream(keyPath)) {
                 keyStore.load(keyStoreIS, keyStorePass.toCharArray());
@@ -210,7 +1495,8 @@ class IntegrationTest {
             tmf.init(trustStore);
 
             SSLContext context = SSLContext.getInstance("TLS");
-            context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+            TrustManager trustManager = trustManagerWrapper.apply((X509ExtendedTrustManager) tmf.getTrustManagers()[0]);
+            context.init(kmf.getKeyManagers(), new TrustManager[]{trustManager}, null);
             return context;
         }
     }
@@ -302,6 +1588,257 @@ class IntegrationTest {
         }
     }
 
+    // Asks the sender to square the number
+    private static class ConnectionIdCommand implements SyncCommand<Integer, Integer> {
+        static final String ID = "connection-id";
+
+        @Override
+        public Integer apply(Integer data, Connection connection) {
+            return connection.getConnectionId();
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+
+    private static class ServerNameCommand implements SyncCommand<Integer, String> {
+        static final String ID = "server-name";
+        private final String name;
+
+        ServerNameCommand(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String apply(Integer data, Connection connection) {
+            return name;
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+
+    private static class RelayCommand implements SyncCommand<Integer, Integer> {
+        static final String ID = "relay";
+
+        @Override
+        public Integer apply(Integer data, Connection connection) {
+            return connection.sendSyncCommand(SquareCommand.ID, data);
+        }
+
+        @Override
+        public long getTimeoutMillis() {
+            return 1000L;
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+
+    private static class TraceRecorder implements TraceInterceptor {
+        private final Queue<Record> records = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void intercept(Hook hook, TraceSpan span, String commandId, Connection connection, long nanos) {
+            records.add(new Record(hook, span, commandId, nanos));
+        }
+
+        // Hooks of writes might be called after the peer has received the frame
+        Record await(Hook hook, String commandId) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 1000L;
+            while (System.currentTimeMillis() < deadline) {
+                for (Record record : records) {
+                    if (record.hook == hook && record.commandId.equals(commandId)) {
+                        return record;
+                    }
+                }
+                Thread.sleep(10L);
+            }
+            throw new AssertionError(String.format("%s of '%s' not found in %s", hook, commandId, records));
+        }
+
+        TraceSpan awaitSpan(Hook hook, String commandId) throws InterruptedException {
+            return await(hook, commandId).span;
+        }
+
+        static class Record {
+            private final Hook hook;
+            private final TraceSpan span;
+            private final String commandId;
+            private final long nanos;
+
+            Record(Hook hook, TraceSpan span, String commandId, long nanos) {
+                this.hook = hook;
+                this.span = span;
+                this.commandId = commandId;
+                this.nanos = nanos;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("%s(%s, %s)", hook, commandId, span);
+            }
+        }
+    }
+
+    private static class SleepCommand implements SyncCommand<Integer, Integer> {
+        static final String ID = "sleep";
+
+        @Override
+        public Integer apply(Integer millis, Connection connection) throws InterruptedException {
+            Thread.sleep(millis);
+            return millis;
+        }
+
+        @Override
+        public long getTimeoutMillis() {
+            return 1000L;
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+
+    private static class EchoCommand implements SyncCommand<String, String> {
+        static final String ID = "echo";
+
+        @Override
+        public String apply(String data, Connection connection) {
+            return data;
+        }
+
+        @Override
+        public long getTimeoutMillis() {
+            return 1000L;
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+
+    private static class ChecksumCommand implements StreamCommand {
+        static final String ID = "checksum";
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile long numOfBytes;
+        private volatile long checksum;
+
+        @Override
+        public void execute(InputStream stream, Connection connection) throws Exception {
+            CRC32 crc32 = new CRC32();
+            byte[] buffer = new byte[4096];
+            long total = 0;
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                crc32.update(buffer, 0, read);
+                total += read;
+            }
+            numOfBytes = total;
+            checksum = crc32.getValue();
+            latch.countDown();
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+
+    private static class PausedChecksumCommand extends ChecksumCommand {
+        static final String ID = "paused-checksum";
+        private final CountDownLatch resume = new CountDownLatch(1);
+
+        @Override
+        public void execute(InputStream stream, Connection connection) throws Exception {
+            resume.await();
+            super.execute(stream, connection);
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+
+    private static class ReceiveFileCommand implements FileCommand {
+        static final String ID = "receive-file";
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final Path target;
+        private volatile String name;
+        private volatile long size;
+
+        ReceiveFileCommand(Path target) {
+            this.target = target;
+        }
+
+        @Override
+        public FileChannel open(String name, long size, Connection connection) throws IOException {
+            return FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public void execute(String name, long size, Connection connection) {
+            this.name = name;
+            this.size = size;
+            latch.countDown();
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+
+    private static class CountingCompressor implements Compressor {
+        private final AtomicInteger numOfCompressed = new AtomicInteger(0);
+        private final AtomicInteger numOfDecompressed = new AtomicInteger(0);
+
+        @Override
+        public String getName() {
+            return "counting-deflate";
+        }
+
+        @Override
+        public byte[] compress(byte[] data) throws IOException {
+            numOfCompressed.incrementAndGet();
+            return Compressor.DEFLATE.compress(data);
+        }
+
+        @Override
+        public byte[] decompress(byte[] data, int originalLength) throws IOException {
+            numOfDecompressed.incrementAndGet();
+            return Compressor.DEFLATE.decompress(data, originalLength);
+        }
+    }
+
+    private static class LatchCommand implements Command<String> {
+        static final String ID = "latch";
+        private final CountDownLatch latch;
+
+        LatchCommand(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void execute(String data, Connection connection) {
+            latch.countDown();
+        }
+
+        @Override
+        public String getId() {
+            return ID;
+        }
+    }
+
     private static class DebugListener implements CommandListener {
         @Override
         public void onConnected(Connection connection) {